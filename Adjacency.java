@@ -0,0 +1,232 @@
+import java.nio.*;
+import java.util.*;
+
+// Compressed sparse row (CSR) adjacency for an undirected graph.  The
+// neighbors of node i are neighbors[offsets[i]] .. neighbors[offsets[i + 1] - 1]
+// and the matching edge weights sit at the same positions in weights[].
+// Every undirected edge is stored once in each direction.  The arrays are
+// held as buffers so that they can either wrap heap arrays or point into a
+// memory-mapped GraphSnapshot.
+public class Adjacency {
+    private final IntBuffer offsets;
+    private final IntBuffer neighbors;
+    private final DoubleBuffer weights;
+    private final boolean[] hidden;
+
+    // Wraps existing CSR buffers.  offsets holds one more entry than there are nodes.
+    public Adjacency(IntBuffer offsets, IntBuffer neighbors, DoubleBuffer weights) {
+        this.offsets = offsets;
+        this.neighbors = neighbors;
+        this.weights = weights;
+        int nodeCount = offsets.limit() - 1;
+        hidden = new boolean[nodeCount];
+        for(int i = 0; i < nodeCount; i++) hidden[i] = computeHidden(i);
+    }
+    
+    private Adjacency(IntBuffer offsets, IntBuffer neighbors, DoubleBuffer weights, boolean[] hidden) {
+        this.offsets = offsets;
+        this.neighbors = neighbors;
+        this.weights = weights;
+        this.hidden = hidden;
+    }
+    
+    private boolean computeHidden(int node) {
+        int degree = degree(node);
+        return degree == 0 || (degree == 1 && degree(neighbors.get(offsets.get(node))) == 1);
+    }
+    
+    // Returns a new adjacency with count more edges, from[e] -- to[e], for a
+    // graph grown to nodeCount nodes.  Each node keeps its existing entries in
+    // order, followed by the new ones.  Runs of nodes without new edges are
+    // moved with block copies, and only nodes near a new edge are rechecked
+    // for isHidden(), so the cost is dominated by copying, not by the size of
+    // the existing graph's structure.
+    public Adjacency withEdges(int nodeCount, int[] from, int[] to, double[] weight, int count) {
+        int oldNodes = size(), oldEntries = entries();
+        int[] added = new int[nodeCount];
+        for(int e = 0; e < count; e++) {
+            added[from[e]]++;
+            added[to[e]]++;
+        }
+        int[] newOffsets = new int[nodeCount + 1];
+        int shift = 0;
+        for(int i = 0; i < nodeCount; i++) {
+            newOffsets[i] = (i < oldNodes ? offsets.get(i) : oldEntries) + shift;
+            shift += added[i];
+        }
+        newOffsets[nodeCount] = oldEntries + shift;
+        
+        // Between two nodes with new edges, old entries all move by the same amount.
+        int[] newNeighbors = new int[oldEntries + shift];
+        double[] newWeights = new double[oldEntries + shift];
+        int copied = 0;
+        shift = 0;
+        for(int i = 0; i < oldNodes; i++) {
+            if(added[i] == 0) continue;
+            copyEntries(copied, end(i), copied + shift, newNeighbors, newWeights);
+            copied = end(i);
+            shift += added[i];
+        }
+        copyEntries(copied, oldEntries, copied + shift, newNeighbors, newWeights);
+        
+        int[] cursor = new int[nodeCount];
+        for(int i = 0; i < nodeCount; i++) cursor[i] = newOffsets[i + 1] - added[i];
+        for(int e = 0; e < count; e++) {
+            int k = cursor[from[e]]++;
+            newNeighbors[k] = to[e];
+            newWeights[k] = weight[e];
+            k = cursor[to[e]]++;
+            newNeighbors[k] = from[e];
+            newWeights[k] = weight[e];
+        }
+        
+        Adjacency next = new Adjacency(IntBuffer.wrap(newOffsets), IntBuffer.wrap(newNeighbors),
+                                       DoubleBuffer.wrap(newWeights), Arrays.copyOf(hidden, nodeCount));
+        for(int i = oldNodes; i < nodeCount; i++) next.hidden[i] = next.computeHidden(i);
+        for(int i = 0; i < nodeCount; i++) {
+            if(added[i] > 0) next.updateHidden(i);
+        }
+        return next;
+    }
+    
+    // Rechecks a node whose degree changed, and the neighbors it may be the
+    // only neighbor of.
+    private void updateHidden(int node) {
+        hidden[node] = computeHidden(node);
+        for(int k = start(node); k < end(node); k++) {
+            int j = neighbors.get(k);
+            if(degree(j) == 1) hidden[j] = computeHidden(j);
+        }
+    }
+    
+    // Copies old entries [from, to) to position at in the new arrays.
+    private void copyEntries(int from, int to, int at, int[] newNeighbors, double[] newWeights) {
+        IntBuffer n = neighbors.duplicate();
+        n.position(from);
+        n.get(newNeighbors, at, to - from);
+        DoubleBuffer w = weights.duplicate();
+        w.position(from);
+        w.get(newWeights, at, to - from);
+    }
+
+    // Returns the number of nodes.
+    public int size() {
+        return offsets.limit() - 1;
+    }
+
+    // Returns the number of directed entries (twice the number of edges).
+    public int entries() {
+        return neighbors.limit();
+    }
+
+    // Returns the number of neighbors of the given node.
+    public int degree(int node) {
+        return offsets.get(node + 1) - offsets.get(node);
+    }
+
+    // Returns the first entry index for the given node.
+    public int start(int node) {
+        return offsets.get(node);
+    }
+
+    // Returns one past the last entry index for the given node.
+    public int end(int node) {
+        return offsets.get(node + 1);
+    }
+
+    // Returns the neighbor stored at the given entry index.
+    public int neighbor(int entry) {
+        return neighbors.get(entry);
+    }
+
+    // Returns the edge weight stored at the given entry index.
+    public double weight(int entry) {
+        return weights.get(entry);
+    }
+
+    // Returns true if the node has no neighbors, or if it and its only
+    // neighbor have only each other as neighbors.  Such nodes are not drawn.
+    public boolean isHidden(int node) {
+        return hidden[node];
+    }
+
+    // Returns the approximate footprint of this structure in bytes, whether the
+    // buffers are on the heap or mapped from a snapshot.
+    public long footprintBytes() {
+        return arrayBytes(offsets.limit(), 4) + arrayBytes(neighbors.limit(), 4) +
+               arrayBytes(weights.limit(), 8) + arrayBytes(hidden.length, 1) + 24;
+    }
+
+    // Returns the approximate heap footprint of the same adjacency stored as
+    // one ArrayList<Integer> and one ArrayList<Double> per node (64-bit JVM,
+    // compressed references), for comparison with footprintBytes().
+    public long boxedFootprintBytes() {
+        long total = 0;
+        for(int i = 0; i < size(); i++) {
+            int capacity = listCapacity(degree(i));
+            // Two ArrayList headers plus their backing Object[] arrays.
+            total += 2 * (24 + arrayBytes(capacity, 4));
+            // One Integer (16 bytes) and one Double (24 bytes) per entry.
+            total += (long) degree(i) * (16 + 24);
+        }
+        return total;
+    }
+
+    // Returns the backing array capacity of an ArrayList after n adds.
+    private static int listCapacity(int n) {
+        if(n == 0) return 0;
+        int capacity = 10;
+        while(capacity < n) capacity += capacity >> 1;
+        return capacity;
+    }
+
+    private static long arrayBytes(long length, int elementSize) {
+        return (16 + length * elementSize + 7) & ~7L;
+    }
+
+    // Collects edges into growable primitive arrays and packs them into an
+    // Adjacency.  Each node's neighbors keep the order their edges were added.
+    public static class Builder {
+        private int[] from = new int[1024];
+        private int[] to = new int[1024];
+        private double[] weight = new double[1024];
+        private int count;
+
+        // Adds an undirected edge between two node indices.
+        public void addEdge(int node1, int node2, double w) {
+            if(count == from.length) {
+                int capacity = from.length * 2;
+                from = Arrays.copyOf(from, capacity);
+                to = Arrays.copyOf(to, capacity);
+                weight = Arrays.copyOf(weight, capacity);
+            }
+            from[count] = node1;
+            to[count] = node2;
+            weight[count] = w;
+            count++;
+        }
+
+        // Builds the adjacency for a graph with the given number of nodes.
+        public Adjacency build(int nodeCount) {
+            int[] offsets = new int[nodeCount + 1];
+            for(int e = 0; e < count; e++) {
+                offsets[from[e] + 1]++;
+                offsets[to[e] + 1]++;
+            }
+            for(int i = 0; i < nodeCount; i++) offsets[i + 1] += offsets[i];
+
+            int[] cursor = Arrays.copyOf(offsets, nodeCount);
+            int[] neighbors = new int[2 * count];
+            double[] weights = new double[2 * count];
+            for(int e = 0; e < count; e++) {
+                int k = cursor[from[e]]++;
+                neighbors[k] = to[e];
+                weights[k] = weight[e];
+                k = cursor[to[e]]++;
+                neighbors[k] = from[e];
+                weights[k] = weight[e];
+            }
+            return new Adjacency(IntBuffer.wrap(offsets), IntBuffer.wrap(neighbors), DoubleBuffer.wrap(weights));
+        }
+    }
+}
@@ -0,0 +1,374 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Parser for the Graphviz .dot files describing image match graphs.  Only two
+// kinds of lines matter:
+//
+//     image12 [label="12", pos="431.5,220.7", width="0.75", height="0.5"];
+//     image12 -- image40 [weight="87", pos="..."];
+//
+// The parser scans raw bytes without building a String per line, collecting
+// nodes and edges into primitive arrays.  Large inputs are split into chunks
+// on line boundaries which are parsed in parallel and merged in file order.
+// Malformed lines are skipped and reported with their line numbers.  Nodes
+// without a pos attribute are placed at 0,0, for GraphLayout to position.
+public class DotParser {
+    private static final byte[] IMAGE = ascii("image");
+    private static final byte[] EDGE_OP = ascii("--");
+    private static final byte[] LABEL = ascii("label=");
+    private static final byte[] WIDTH = ascii("width=");
+    private static final byte[] POS = ascii("pos=\"");
+    private static final byte[] WEIGHT = ascii("weight=\"");
+
+    private static final int CHUNK_SIZE = 8 << 20;
+
+    // Parsed contents of a .dot file.  Nodes and edges appear in file order;
+    // edges refer to nodes by image index, not by node position.
+    public static class Result {
+        public int nodeCount;
+        public int[] nodeImage = new int[64];
+        public int[] nodeX = new int[64];
+        public int[] nodeY = new int[64];
+        public int edgeCount;
+        public int[] edgeImage1 = new int[64];
+        public int[] edgeImage2 = new int[64];
+        public double[] edgeWeight = new double[64];
+        public long lineCount;
+        // Problems found, as "line N: message".
+        public ArrayList<String> problems = new ArrayList<String>();
+
+        private ArrayList<Long> problemLines = new ArrayList<Long>();
+        private ArrayList<String> problemMessages = new ArrayList<String>();
+
+        public void addNode(int image, int x, int y) {
+            if(nodeCount == nodeImage.length) {
+                int capacity = nodeCount * 2;
+                nodeImage = Arrays.copyOf(nodeImage, capacity);
+                nodeX = Arrays.copyOf(nodeX, capacity);
+                nodeY = Arrays.copyOf(nodeY, capacity);
+            }
+            nodeImage[nodeCount] = image;
+            nodeX[nodeCount] = x;
+            nodeY[nodeCount] = y;
+            nodeCount++;
+        }
+
+        public void addEdge(int image1, int image2, double weight) {
+            if(edgeCount == edgeImage1.length) {
+                int capacity = edgeCount * 2;
+                edgeImage1 = Arrays.copyOf(edgeImage1, capacity);
+                edgeImage2 = Arrays.copyOf(edgeImage2, capacity);
+                edgeWeight = Arrays.copyOf(edgeWeight, capacity);
+            }
+            edgeImage1[edgeCount] = image1;
+            edgeImage2[edgeCount] = image2;
+            edgeWeight[edgeCount] = weight;
+            edgeCount++;
+        }
+
+        private void addProblem(long line, String message) {
+            problemLines.add(line);
+            problemMessages.add(message);
+        }
+
+        // Appends another chunk's results, renumbering its lines.
+        private void append(Result chunk) {
+            int nodes = nodeCount + chunk.nodeCount;
+            if(nodes > nodeImage.length) {
+                nodeImage = Arrays.copyOf(nodeImage, nodes);
+                nodeX = Arrays.copyOf(nodeX, nodes);
+                nodeY = Arrays.copyOf(nodeY, nodes);
+            }
+            System.arraycopy(chunk.nodeImage, 0, nodeImage, nodeCount, chunk.nodeCount);
+            System.arraycopy(chunk.nodeX, 0, nodeX, nodeCount, chunk.nodeCount);
+            System.arraycopy(chunk.nodeY, 0, nodeY, nodeCount, chunk.nodeCount);
+            nodeCount = nodes;
+
+            int edges = edgeCount + chunk.edgeCount;
+            if(edges > edgeImage1.length) {
+                edgeImage1 = Arrays.copyOf(edgeImage1, edges);
+                edgeImage2 = Arrays.copyOf(edgeImage2, edges);
+                edgeWeight = Arrays.copyOf(edgeWeight, edges);
+            }
+            System.arraycopy(chunk.edgeImage1, 0, edgeImage1, edgeCount, chunk.edgeCount);
+            System.arraycopy(chunk.edgeImage2, 0, edgeImage2, edgeCount, chunk.edgeCount);
+            System.arraycopy(chunk.edgeWeight, 0, edgeWeight, edgeCount, chunk.edgeCount);
+            edgeCount = edges;
+
+            for(int i = 0; i < chunk.problemLines.size(); i++) {
+                addProblem(lineCount + chunk.problemLines.get(i), chunk.problemMessages.get(i));
+            }
+            lineCount += chunk.lineCount;
+        }
+
+        private void finish() {
+            for(int i = 0; i < problemLines.size(); i++) {
+                problems.add("line " + problemLines.get(i) + ": " + problemMessages.get(i));
+            }
+        }
+    }
+
+    // Parses a file, memory-mapping it chunk by chunk.
+    public static Result parse(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long[] bounds = chunkBounds(channel);
+            ByteBuffer[] chunks = new ByteBuffer[bounds.length - 1];
+            for(int c = 0; c < chunks.length; c++) {
+                chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, bounds[c], bounds[c + 1] - bounds[c]);
+            }
+            return parseChunks(chunks);
+        } finally {
+            raf.close();
+        }
+    }
+
+    // Parses a stream, such as a URL connection, by reading it fully first.
+    public static Result parse(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 16);
+        byte[] buffer = new byte[1 << 16];
+        int n;
+        while((n = in.read(buffer)) > 0) bytes.write(buffer, 0, n);
+        in.close();
+        return parse(ByteBuffer.wrap(bytes.toByteArray()));
+    }
+
+    // Parses the bytes between the buffer's position and limit.
+    public static Result parse(ByteBuffer buffer) {
+        ArrayList<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+        int start = buffer.position();
+        while(start < buffer.limit()) {
+            int end = (int) Math.min((long) start + CHUNK_SIZE, buffer.limit());
+            while(end < buffer.limit() && buffer.get(end - 1) != '\n') end++;
+            ByteBuffer chunk = buffer.duplicate();
+            chunk.limit(end).position(start);
+            chunks.add(chunk.slice());
+            start = end;
+        }
+        return parseChunks(chunks.toArray(new ByteBuffer[0]));
+    }
+
+    // Splits a file into chunks of about CHUNK_SIZE bytes that end on line
+    // boundaries.  Returns the chunk start offsets followed by the file size.
+    private static long[] chunkBounds(FileChannel channel) throws IOException {
+        long size = channel.size();
+        ArrayList<Long> bounds = new ArrayList<Long>();
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+        long start = 0;
+        bounds.add(start);
+        while(start < size) {
+            long end = Math.min(start + CHUNK_SIZE, size);
+            // Extend the chunk to just past the next newline.
+            scan:
+            while(end < size) {
+                probe.clear();
+                int n = channel.read(probe, end - 1);
+                if(n <= 0) {
+                    end = size;
+                    break;
+                }
+                for(int i = 0; i < n; i++) {
+                    if(probe.get(i) == '\n') {
+                        end += i;
+                        break scan;
+                    }
+                }
+                end += n;
+            }
+            if(end > size) end = size;
+            bounds.add(end);
+            start = end;
+        }
+        if(bounds.size() == 1) bounds.add(size);
+        long[] result = new long[bounds.size()];
+        for(int i = 0; i < result.length; i++) result[i] = bounds.get(i);
+        return result;
+    }
+
+    // Parses chunks in parallel and merges their results in order.
+    private static Result parseChunks(final ByteBuffer[] chunks) {
+        Result result = new Result();
+        if(chunks.length == 1) {
+            result.append(parseChunk(chunks[0]));
+        } else if(chunks.length > 1) {
+            int threads = Math.min(chunks.length, Runtime.getRuntime().availableProcessors());
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                ArrayList<Future<Result>> parts = new ArrayList<Future<Result>>();
+                for(final ByteBuffer chunk : chunks) {
+                    parts.add(executor.submit(new Callable<Result>() {
+                        public Result call() {
+                            return parseChunk(chunk);
+                        }
+                    }));
+                }
+                for(Future<Result> part : parts) result.append(part.get());
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch(ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            } finally {
+                executor.shutdown();
+            }
+        }
+        result.finish();
+        return result;
+    }
+
+    // Parses one chunk.  Line numbers in the result are relative to the chunk.
+    private static Result parseChunk(ByteBuffer buffer) {
+        Result result = new Result();
+        int limit = buffer.limit();
+        int start = 0;
+        while(start < limit) {
+            int end = start;
+            while(end < limit && buffer.get(end) != '\n') end++;
+            result.lineCount++;
+            parseLine(buffer, start, end, result);
+            start = end + 1;
+        }
+        return result;
+    }
+
+    // Parses the line in [start, end) if it describes a node or an edge.
+    private static void parseLine(ByteBuffer b, int start, int end, Result result) {
+        int image = indexOf(b, start, end, IMAGE);
+        if(image < 0) return;
+        long line = result.lineCount;
+
+        int edgeOp = indexOf(b, start, end, EDGE_OP);
+        if(edgeOp >= 0) {
+            int image1 = parseIndex(b, image + IMAGE.length, edgeOp);
+            int second = indexOf(b, edgeOp, end, IMAGE);
+            int image2 = second < 0 ? -1 : parseIndex(b, second + IMAGE.length, end);
+            if(image1 < 0 || image2 < 0) {
+                result.addProblem(line, "malformed edge");
+                return;
+            }
+            double weight = 0.0;
+            int w = indexOf(b, second, end, WEIGHT);
+            if(w < 0) {
+                result.addProblem(line, "edge has no weight, using 0");
+            } else {
+                weight = parseNumber(b, w + WEIGHT.length, end, '"');
+                if(Double.isNaN(weight)) {
+                    result.addProblem(line, "bad edge weight, using 0");
+                    weight = 0.0;
+                }
+            }
+            result.addEdge(image1, image2, weight);
+        } else if(indexOf(b, start, end, LABEL) >= 0 || indexOf(b, start, end, WIDTH) >= 0) {
+            int imageIndex = parseIndex(b, image + IMAGE.length, end);
+            int pos = indexOf(b, start, end, POS);
+            if(imageIndex >= 0 && pos < 0) {
+                // Not laid out yet; GraphLayout can place it.
+                result.addNode(imageIndex, 0, 0);
+                return;
+            }
+            int comma = pos < 0 ? -1 : indexOf(b, pos, end, (byte) ',');
+            if(imageIndex < 0 || comma < 0) {
+                result.addProblem(line, "malformed node");
+                return;
+            }
+            double x = parseNumber(b, pos + POS.length, comma + 1, ',');
+            double y = parseNumber(b, comma + 1, end, '"');
+            if(Double.isNaN(x) || Double.isNaN(y)) {
+                result.addProblem(line, "bad node position");
+                return;
+            }
+            // Matches Math.round(Float.parseFloat(...)).
+            result.addNode(imageIndex, Math.round((float) x), Math.round((float) y));
+        }
+    }
+
+    // Parses the unsigned integer starting at from, or returns -1.
+    private static int parseIndex(ByteBuffer b, int from, int to) {
+        long value = 0;
+        int i = from;
+        while(i < to && b.get(i) >= '0' && b.get(i) <= '9') {
+            value = value * 10 + (b.get(i) - '0');
+            if(value > Integer.MAX_VALUE) return -1;
+            i++;
+        }
+        return i == from ? -1 : (int) value;
+    }
+
+    // Parses a decimal number starting at from and ending at the terminator,
+    // or returns NaN.  Plain decimals are converted without allocating; other
+    // forms (exponents, very long mantissas) go through Double.parseDouble.
+    private static double parseNumber(ByteBuffer b, int from, int to, char terminator) {
+        int end = from;
+        while(end < to && b.get(end) != terminator) end++;
+        if(end == to || end == from) return Double.NaN;
+
+        int i = from;
+        boolean negative = false;
+        if(b.get(i) == '-' || b.get(i) == '+') {
+            negative = b.get(i) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0, fraction = -1;
+        for(; i < end; i++) {
+            byte c = b.get(i);
+            if(c >= '0' && c <= '9') {
+                mantissa = mantissa * 10 + (c - '0');
+                digits++;
+                if(fraction >= 0) fraction++;
+            } else if(c == '.' && fraction < 0) {
+                fraction = 0;
+            } else {
+                break;
+            }
+        }
+        if(i == end && digits > 0 && digits <= 15) {
+            // Both operands are exact doubles, so the quotient is correctly rounded.
+            double value = fraction > 0 ? mantissa / POWERS_OF_TEN[fraction] : mantissa;
+            return negative ? -value : value;
+        }
+
+        byte[] text = new byte[end - from];
+        for(int k = 0; k < text.length; k++) text[k] = b.get(from + k);
+        try {
+            return Double.parseDouble(new String(text, "US-ASCII").trim());
+        } catch(Exception e) {
+            return Double.NaN;
+        }
+    }
+
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15
+    };
+
+    // Returns the position of the pattern within [from, to), or -1.
+    private static int indexOf(ByteBuffer b, int from, int to, byte[] pattern) {
+        byte first = pattern[0];
+        search:
+        for(int i = from; i <= to - pattern.length; i++) {
+            if(b.get(i) != first) continue;
+            for(int k = 1; k < pattern.length; k++) {
+                if(b.get(i + k) != pattern[k]) continue search;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static int indexOf(ByteBuffer b, int from, int to, byte value) {
+        for(int i = from; i < to; i++) {
+            if(b.get(i) == value) return i;
+        }
+        return -1;
+    }
+
+    private static byte[] ascii(String s) {
+        byte[] bytes = new byte[s.length()];
+        for(int i = 0; i < bytes.length; i++) bytes[i] = (byte) s.charAt(i);
+        return bytes;
+    }
+}
@@ -0,0 +1,239 @@
+import java.util.*;
+
+// Every edge of an Adjacency sorted by weight, strongest first, for showing
+// only the edges at or above a weight threshold.  The edges that pass are
+// always a prefix of the order, found with a binary search, so drawing them
+// is a contiguous scan and moving the threshold only touches the edges
+// between the old and the new prefix length.
+//
+// The index also keeps each node's degree counting only passing edges, and
+// the XOR of those neighbors, which is the neighbor itself when there is
+// exactly one; isHidden() applies Adjacency.isHidden()'s rule to the
+// filtered graph in constant time.
+//
+// Nothing is sorted until a threshold is first set; until then every
+// question is passed on to the adjacency.
+public class EdgeIndex {
+    private static final Metrics.Histogram SORT_TIME = Metrics.timer("edges.sort");
+
+    private final Adjacency adjacency;
+    private double threshold = Double.NEGATIVE_INFINITY;
+    // The node and entry of each edge, strongest first.  Self loops keep both
+    // of their entries, like the adjacency.
+    private int[] from, entries;
+    private int visible;
+    private int[] degree, neighborXor;
+
+    // Constructor.
+    public EdgeIndex(Adjacency adjacency) {
+        this.adjacency = adjacency;
+    }
+
+    // Shows only edges with weight >= threshold.  Negative infinity shows all.
+    public void setThreshold(double threshold) {
+        if(from == null) {
+            if(threshold == Double.NEGATIVE_INFINITY) return;
+            sort();
+        }
+        int next = countAtLeast(threshold);
+        for(int r = visible; r < next; r++) toggle(r);
+        for(int r = next; r < visible; r++) toggle(r);
+        visible = next;
+        this.threshold = threshold;
+    }
+
+    public double getThreshold() {
+        return threshold;
+    }
+
+    // Returns true if some edges are filtered out.
+    public boolean isFiltered() {
+        return from != null && visible < from.length;
+    }
+
+    // Returns the number of edges that pass the threshold, with self loops
+    // counted twice.
+    public int getVisibleCount() {
+        return from == null ? adjacency.entries() / 2 : visible;
+    }
+
+    // Returns the number of edges with weight >= threshold.  Sorts on first use.
+    public int countAtLeast(double threshold) {
+        if(from == null) sort();
+        int low = 0, high = from.length;
+        while(low < high) {
+            int middle = (low + high) >>> 1;
+            if(adjacency.weight(entries[middle]) >= threshold) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+
+    // Returns the node the rank-th strongest edge was indexed from.  Only
+    // valid once filtered.
+    public int from(int rank) {
+        return from[rank];
+    }
+
+    // Returns the adjacency entry of the rank-th strongest edge.
+    public int entry(int rank) {
+        return entries[rank];
+    }
+
+    // Returns true if the edge at an adjacency entry passes the threshold.
+    public boolean passes(int entry) {
+        return adjacency.weight(entry) >= threshold;
+    }
+
+    // Returns the number of passing edges of a node.
+    public int degree(int node) {
+        return degree == null ? adjacency.degree(node) : degree[node];
+    }
+
+    // Returns true if a node has no passing edges, or only one, to a node
+    // whose only passing edge it is.  Such nodes are not drawn.
+    public boolean isHidden(int node) {
+        if(degree == null) return adjacency.isHidden(node);
+        int d = degree[node];
+        return d == 0 || (d == 1 && degree[neighborXor[node]] == 1);
+    }
+
+    // Returns the index of next, which must be this index's adjacency with
+    // edges added by Adjacency.withEdges(), with this index's threshold.
+    // Only the added edges are sorted; they are merged into a copy of this
+    // index's order, and the filtered degrees are carried over, so a batch of
+    // added edges costs a copy of the index rather than a sort of every edge.
+    public EdgeIndex withEdges(Adjacency next) {
+        EdgeIndex index = new EdgeIndex(next);
+        if(from == null) return index;
+        long start = System.nanoTime();
+        int n = adjacency.size(), total = next.size();
+
+        // Added entries follow each node's old entries.
+        int count = 0;
+        for(int i = 0; i < total; i++) {
+            int oldDegree = i < n ? adjacency.degree(i) : 0;
+            for(int k = next.start(i) + oldDegree; k < next.end(i); k++) {
+                if(next.neighbor(k) >= i) count++;
+            }
+        }
+        int[] addedFrom = new int[count], addedEntries = new int[count];
+        int e = 0;
+        for(int i = 0; i < total; i++) {
+            int oldDegree = i < n ? adjacency.degree(i) : 0;
+            for(int k = next.start(i) + oldDegree; k < next.end(i); k++) {
+                if(next.neighbor(k) < i) continue;
+                addedFrom[e] = i;
+                addedEntries[e++] = k;
+            }
+        }
+        sortByWeight(next, addedFrom, addedEntries);
+
+        // Merge, moving old entries to their place in the new adjacency.
+        index.from = new int[from.length + count];
+        index.entries = new int[from.length + count];
+        int a = 0, b = 0;
+        for(int r = 0; r < index.from.length; r++) {
+            if(b == count || (a < from.length && adjacency.weight(entries[a]) >= next.weight(addedEntries[b]))) {
+                int node = from[a];
+                index.from[r] = node;
+                index.entries[r] = next.start(node) + entries[a] - adjacency.start(node);
+                a++;
+            } else {
+                index.from[r] = addedFrom[b];
+                index.entries[r] = addedEntries[b];
+                b++;
+            }
+        }
+
+        index.threshold = threshold;
+        index.visible = index.countAtLeast(threshold);
+        index.degree = Arrays.copyOf(degree, total);
+        index.neighborXor = Arrays.copyOf(neighborXor, total);
+        for(e = 0; e < count; e++) {
+            if(next.weight(addedEntries[e]) >= threshold) index.count(addedFrom[e], addedEntries[e], 1);
+        }
+        SORT_TIME.recordSince(start);
+        return index;
+    }
+
+    // Adds or removes the rank-th edge from the filtered degrees.
+    private void toggle(int rank) {
+        count(from[rank], entries[rank], rank < visible ? -1 : 1);
+    }
+
+    // Changes the filtered degrees by an edge given by node and entry.
+    private void count(int node, int entry, int change) {
+        int neighbor = adjacency.neighbor(entry);
+        degree[node] += change;
+        neighborXor[node] ^= neighbor;
+        // Each entry of a self loop is indexed, and counts once.
+        if(neighbor != node) {
+            degree[neighbor] += change;
+            neighborXor[neighbor] ^= node;
+        }
+    }
+
+    // Orders the edges by weight.  All edges start visible.
+    private void sort() {
+        long start = System.nanoTime();
+        int n = adjacency.size();
+        int count = 0;
+        for(int i = 0; i < n; i++) {
+            for(int k = adjacency.start(i); k < adjacency.end(i); k++) {
+                if(adjacency.neighbor(k) >= i) count++;
+            }
+        }
+        from = new int[count];
+        entries = new int[count];
+        int e = 0;
+        for(int i = 0; i < n; i++) {
+            for(int k = adjacency.start(i); k < adjacency.end(i); k++) {
+                if(adjacency.neighbor(k) < i) continue;
+                from[e] = i;
+                entries[e++] = k;
+            }
+        }
+        sortByWeight(adjacency, from, entries);
+
+        visible = count;
+        degree = new int[n];
+        neighborXor = new int[n];
+        for(int i = 0; i < n; i++) {
+            degree[i] = adjacency.degree(i);
+            for(int k = adjacency.start(i); k < adjacency.end(i); k++) neighborXor[i] ^= adjacency.neighbor(k);
+        }
+        SORT_TIME.recordSince(start);
+    }
+
+    // Sorts edges given by node and entry by weight, strongest first, with a
+    // counting sort over the distinct weights, so no boxed comparator is
+    // needed.  Edges of equal weight keep their order.
+    private static void sortByWeight(Adjacency adjacency, int[] from, int[] entries) {
+        int count = from.length;
+        double[] distinct = new double[count];
+        for(int e = 0; e < count; e++) distinct[e] = adjacency.weight(entries[e]);
+        Arrays.sort(distinct);
+        int unique = 0;
+        for(int d = 0; d < count; d++) {
+            if(unique == 0 || distinct[d] != distinct[unique - 1]) distinct[unique++] = distinct[d];
+        }
+
+        // Bucket edges by weight, strongest bucket first.
+        int[] bucketStart = new int[unique + 1];
+        int[] bucket = new int[count];
+        for(int e = 0; e < count; e++) {
+            bucket[e] = unique - 1 - Arrays.binarySearch(distinct, 0, unique, adjacency.weight(entries[e]));
+            bucketStart[bucket[e] + 1]++;
+        }
+        for(int b = 0; b < unique; b++) bucketStart[b + 1] += bucketStart[b];
+        int[] sortedFrom = new int[count], sortedEntries = new int[count];
+        for(int e = 0; e < count; e++) {
+            int r = bucketStart[bucket[e]]++;
+            sortedFrom[r] = from[e];
+            sortedEntries[r] = entries[e];
+        }
+        System.arraycopy(sortedFrom, 0, from, 0, count);
+        System.arraycopy(sortedEntries, 0, entries, 0, count);
+    }
+}
@@ -1,131 +1,581 @@
 import java.io.*;
+import java.nio.*;
 import java.util.*;
 import java.awt.*;
 import javax.swing.*;
 import java.awt.image.*;
 import javax.imageio.*;
-import java.net.*;
+import java.util.concurrent.Future;
 
 public class Graph {
-    private ArrayList<Node> graph;
+    private Adjacency adjacency;
+    private EdgeIndex edgeIndex;
+    private NodeGrid grid;
+    private int nodeCount;
+    private IntBuffer xs, ys;
+    private StringTable names;
+    private byte[] nodeSizes;
+    private ByteBuffer edgeShades;
+    private ImageCache imageCache;
+    private RemoteLoader remote;
+    private ThumbnailStore thumbnails;
+    private int imageWidth, imageHeight;
     private int selectedNode = -1;
     private String imagesDirectory;
     private boolean isURL;
     private double minWeight = Double.MAX_VALUE;
     private double maxWeight = 0;
     private int dragX1 = -1, dragY1 = -1, dragX2 = -1, dragY2 = -1;
-    private Hashtable indexHash;                
-    private Vector imageNames;
+    private GraphQuery query;
+    private int[] highlightedPath;
+    private int highlightedComponent = -1;
+    private IntBuffer imageOfNode;
+    private int[] nodeOfImage;
+    private DotParser.Result waiting;
+    private GraphHierarchy hierarchy;
+    private GraphHierarchy.Cut cut;
+    private boolean semanticZoom;
 
     private static final int NODE_SIZE = 15;
+    private static final long IMAGE_CACHE_BYTES = 128L << 20;
+    private static final int IMAGE_LOADER_THREADS = 2;
+    private static final int PREFETCH_COUNT = 4;
+    private static final int DENSE_PIXELS_PER_EDGE = 4;
+    private static final int SHORT_EDGE_LENGTH = 16;
+    private static final int MAX_REPORTED_PROBLEMS = 20;
+    private static final Color CLUSTER_COLOR = new Color(150, 0, 0);
+    private static final Metrics.Histogram LOAD_TIME = Metrics.timer("load");
+    private static final Metrics.Histogram PARSE_TIME = Metrics.timer("load.parse");
+    private static final Metrics.Histogram BUILD_TIME = Metrics.timer("load.build");
+    private static final Metrics.Histogram SNAPSHOT_TIME = Metrics.timer("load.snapshot");
+    private static final Metrics.Histogram INDEX_TIME = Metrics.timer("load.index");
+    private static final Metrics.Histogram UPDATE_TIME = Metrics.timer("load.update");
+    private static final Metrics.Histogram DRAW_BASE_TIME = Metrics.timer("draw.base");
+    private static final Metrics.Histogram DRAW_SUMMARY_TIME = Metrics.timer("draw.summary");
+    private static final Metrics.Histogram DRAW_OVERLAY_TIME = Metrics.timer("draw.overlay");
+    private static final Metrics.Histogram EDGES_DRAWN = Metrics.histogram("draw.edges", "edges");
+    private static final Metrics.Histogram NODES_DRAWN = Metrics.histogram("draw.nodes", "nodes");
+    private static final Metrics.Histogram SELECT_TIME = Metrics.timer("select");
+    private static final Metrics.Histogram IMAGE_DECODE_TIME = Metrics.timer("image.decode");
+    private static final Metrics.Counter IMAGE_BYTES = Metrics.counter("image.bytes");
+    private static final Color[] BLUES = new Color[256];
+    private static final Color[] GREENS = new Color[256];
+    
+    static {
+        for(int i = 0; i < 256; i++) {
+            BLUES[i] = new Color(0, 0, i);
+            GREENS[i] = new Color(0, i, 0);
+        }
+    }
     
     // Constructor.
     public Graph(String graphFile, String listFile, String imagesDirectory, boolean isURL) {
+        this(graphFile, listFile, imagesDirectory, isURL, true);
+    }
+    
+    // Constructor.  If useSnapshot is set and graphFile + GraphSnapshot.SUFFIX
+    // is newer than the graph and list files, the graph is mapped from that
+    // snapshot instead of being parsed.
+    public Graph(String graphFile, String listFile, String imagesDirectory, boolean isURL, boolean useSnapshot) {
+        long loadStart = System.nanoTime();
         this.imagesDirectory = imagesDirectory;
         this.isURL = isURL;
-        graph = new ArrayList<Node>();
-        indexHash = new Hashtable();
-        imageNames = new Vector();
+        imageCache = createImageCache();
 
+        File snapshot = new File(graphFile + GraphSnapshot.SUFFIX);
+        boolean loaded = false;
+        if(useSnapshot && !isURL && GraphSnapshot.isFresh(snapshot, new File(graphFile), new File(listFile))) {
+            try {
+                long start = System.nanoTime();
+                loadSnapshot(GraphSnapshot.open(snapshot));
+                SNAPSHOT_TIME.recordSince(start);
+                System.out.println("Using snapshot " + snapshot);
+                loaded = true;
+            } catch(IOException e) {
+                System.out.println("Error reading snapshot " + snapshot + ": " + e.getMessage());
+            }
+        }
+        if(!loaded) loadText(graphFile, listFile);
+
+        File store = new File(listFile + ThumbnailStore.SUFFIX);
+        if(!isURL && ThumbnailStore.isFresh(store, new File(listFile))) {
+            try {
+                thumbnails = ThumbnailStore.open(store);
+                System.out.println("Using thumbnails " + store);
+            } catch(IOException e) {
+                System.out.println("Error reading thumbnails " + store + ": " + e.getMessage());
+            }
+        }
+        
+        long indexStart = System.nanoTime();
+        nodeCount = adjacency.size();
+        grid = new NodeGrid(xs, ys);
+        edgeIndex = new EdgeIndex(adjacency);
+        computeNodeSizes();
+        INDEX_TIME.recordSince(indexStart);
+        LOAD_TIME.recordSince(loadStart);
+
+        System.out.println("Total Nodes: " + nodeCount);
+        System.out.println("Adjacency: " + adjacency.footprintBytes() + " bytes (boxed lists would use ~" +
+                           adjacency.boxedFootprintBytes() + " bytes)");
+        for(int i = 0; i < nodeCount; i++) {
+            if(adjacency.degree(i) == 0) System.out.println("Node " + i + " has no neighbors.");
+            else if(adjacency.degree(i) == 1 && adjacency.degree(adjacency.neighbor(adjacency.start(i))) == 1)
+                System.out.println("Node " + i + " and " + adjacency.neighbor(adjacency.start(i)) +  " have only each other as neighbors.");
+        }
+    }
+    
+    // Constructor for an empty graph that is filled in by live updates; see
+    // prepareUpdate() and GraphWatcher.
+    public Graph(String imagesDirectory, boolean isURL) {
+        this.imagesDirectory = imagesDirectory;
+        this.isURL = isURL;
+        imageCache = createImageCache();
+        xs = IntBuffer.allocate(0);
+        ys = IntBuffer.allocate(0);
+        imageOfNode = IntBuffer.allocate(0);
+        names = StringTable.of(new String[0]);
+        adjacency = new Adjacency.Builder().build(0);
+        edgeShades = ByteBuffer.allocate(0);
+        nodeSizes = new byte[0];
+        grid = new NodeGrid(xs, ys);
+        edgeIndex = new EdgeIndex(adjacency);
+        nodeOfImage = new int[0];
+        waiting = new DotParser.Result();
+    }
+    
+    // In URL mode, also creates the loader that fetches and caches files, and
+    // decodes images on as many threads as it has connections.
+    private ImageCache createImageCache() {
+        int threads = IMAGE_LOADER_THREADS;
+        if(isURL) {
+            remote = new RemoteLoader();
+            threads = RemoteLoader.DEFAULT_CONNECTIONS;
+        }
+        return new ImageCache(new ImageCache.Loader() {
+            public BufferedImage load(String name) throws IOException {
+                return readImage(name);
+            }
+        }, IMAGE_CACHE_BYTES, threads);
+    }
+    
+    // The new state of a graph after a batch of appended .dot lines, built by
+    // prepareUpdate() and installed by applyUpdate().
+    public static class Update {
+        private IntBuffer xs, ys;
+        private IntBuffer imageOfNode;
+        private StringTable names;
+        private Adjacency adjacency;
+        private EdgeIndex edgeIndex;
+        private ByteBuffer edgeShades;
+        private byte[] nodeSizes;
+        private NodeGrid grid;
+        private double minWeight, maxWeight;
+        private int[] nodeOfImage;
+        private DotParser.Result waiting;
+        private int nodesAdded, edgesAdded;
+        private ArrayList<String> problems = new ArrayList<String>();
+        
+        public int getNodesAdded() {
+            return nodesAdded;
+        }
+        
+        public int getEdgesAdded() {
+            return edgesAdded;
+        }
+        
+        // Returns how many nodes and edges are held back until the list file
+        // names their image or both of their nodes have appeared.
+        public int getWaiting() {
+            return waiting.nodeCount + waiting.edgeCount;
+        }
+        
+        public ArrayList<String> getProblems() {
+            return problems;
+        }
+    }
+    
+    // Works out the graph that results from adding the nodes and edges of a
+    // batch of appended .dot lines, without changing this graph.  listLines
+    // is the whole list file read so far.  Existing positions, names, edges
+    // and shades are copied rather than recomputed, unless a new edge widens
+    // the weight range, which changes every shade.  Nodes whose image is not
+    // in the list yet and edges whose nodes have not appeared yet are held
+    // back and retried with the next batch.  May be called from any thread,
+    // one update at a time; the result must be passed to applyUpdate() before
+    // the next call.
+    public synchronized Update prepareUpdate(DotParser.Result batch, ArrayList<String> listLines) {
+        if(nodeOfImage == null) throw new IllegalStateException("only graphs created empty can be updated");
+        long start = System.nanoTime();
+        Update update = new Update();
+        update.waiting = new DotParser.Result();
+        DotParser.Result[] sources = {waiting, batch};
+        
+        int[] images = Arrays.copyOf(nodeOfImage, Math.max(nodeOfImage.length, listLines.size()));
+        Arrays.fill(images, nodeOfImage.length, images.length, -1);
+        int capacity = waiting.nodeCount + batch.nodeCount;
+        int[] newX = new int[capacity];
+        int[] newY = new int[capacity];
+        int[] newImages = new int[capacity];
+        String[] newNames = new String[capacity];
+        int added = 0;
+        for(DotParser.Result source : sources) {
+            for(int i = 0; i < source.nodeCount; i++) {
+                int image = source.nodeImage[i];
+                if(image >= listLines.size()) {
+                    update.waiting.addNode(image, source.nodeX[i], source.nodeY[i]);
+                } else if(images[image] >= 0) {
+                    update.problems.add("node image" + image + " appears twice");
+                } else {
+                    images[image] = nodeCount + added;
+                    newX[added] = source.nodeX[i];
+                    newY[added] = source.nodeY[i];
+                    newImages[added] = image;
+                    newNames[added] = imageName(listLines.get(image));
+                    added++;
+                }
+            }
+        }
+        
+        capacity = waiting.edgeCount + batch.edgeCount;
+        int[] from = new int[capacity];
+        int[] to = new int[capacity];
+        double[] weights = new double[capacity];
+        int edges = 0;
+        double min = minWeight, max = maxWeight;
+        for(DotParser.Result source : sources) {
+            for(int e = 0; e < source.edgeCount; e++) {
+                int image1 = source.edgeImage1[e], image2 = source.edgeImage2[e];
+                int idx1 = image1 < images.length ? images[image1] : -1;
+                int idx2 = image2 < images.length ? images[image2] : -1;
+                double weight = source.edgeWeight[e];
+                if(idx1 < 0 || idx2 < 0) {
+                    update.waiting.addEdge(image1, image2, weight);
+                    continue;
+                }
+                from[edges] = idx1;
+                to[edges] = idx2;
+                weights[edges] = weight;
+                edges++;
+                if(weight < min) min = weight;
+                if(weight > max) max = weight;
+            }
+        }
+        
+        int total = nodeCount + added;
+        update.nodeOfImage = images;
+        update.nodesAdded = added;
+        update.edgesAdded = edges;
+        update.minWeight = min;
+        update.maxWeight = max;
+        update.xs = added == 0 ? xs : IntBuffer.wrap(appendInts(xs, nodeCount, newX, added));
+        update.ys = added == 0 ? ys : IntBuffer.wrap(appendInts(ys, nodeCount, newY, added));
+        update.imageOfNode = added == 0 ? imageOfNode : IntBuffer.wrap(appendInts(imageOfNode, nodeCount, newImages, added));
+        update.names = added == 0 ? names : names.append(Arrays.copyOf(newNames, added));
+        update.grid = added == 0 ? grid : new NodeGrid(update.xs, update.ys);
+        update.adjacency = adjacency.withEdges(total, from, to, weights, edges);
+        update.edgeIndex = edgeIndex.withEdges(update.adjacency);
+        
+        // Shades of existing entries only change with the weight range.
+        Adjacency next = update.adjacency;
+        double normalizer = shadeNormalizer(min, max);
+        boolean rangeChanged = min != minWeight || max != maxWeight;
+        byte[] shades = new byte[next.entries()];
+        ByteBuffer oldShades = edgeShades.duplicate();
+        byte[] sizes = Arrays.copyOf(nodeSizes, total);
+        for(int i = 0; i < total; i++) {
+            int oldDegree = i < nodeCount ? adjacency.degree(i) : 0;
+            int k = next.start(i);
+            if(!rangeChanged && oldDegree > 0) {
+                oldShades.position(adjacency.start(i));
+                oldShades.get(shades, k, oldDegree);
+                k += oldDegree;
+            }
+            for(; k < next.end(i); k++) shades[k] = shade(next.weight(k), min, normalizer);
+            if(next.degree(i) != oldDegree) sizes[i] = nodeSize(next.degree(i));
+        }
+        update.edgeShades = ByteBuffer.wrap(shades);
+        update.nodeSizes = sizes;
+        UPDATE_TIME.recordSince(start);
+        return update;
+    }
+    
+    // Installs an update made by prepareUpdate().  Must run on the Swing
+    // event thread, which is where the graph is drawn and queried, so no
+    // reader sees a partly applied update.  Callers must redraw the base layer.
+    public synchronized void applyUpdate(Update update) {
+        xs = update.xs;
+        ys = update.ys;
+        imageOfNode = update.imageOfNode;
+        names = update.names;
+        adjacency = update.adjacency;
+        edgeShades = update.edgeShades;
+        nodeSizes = update.nodeSizes;
+        grid = update.grid;
+        minWeight = update.minWeight;
+        maxWeight = update.maxWeight;
+        nodeOfImage = update.nodeOfImage;
+        waiting = update.waiting;
+        nodeCount = adjacency.size();
+        // The threshold may have moved since the update was prepared.
+        double threshold = edgeIndex.getThreshold();
+        edgeIndex = update.edgeIndex;
+        edgeIndex.setThreshold(threshold);
+        // Images that failed while their files were being written may load now.
+        imageCache.retryFailed();
+        // Component numbers change as edges join components.
+        query = null;
+        highlightedComponent = -1;
+        hierarchy = null;
+        cut = null;
+    }
+    
+    // Returns the first count values of a buffer followed by more[0 .. added - 1].
+    private static int[] appendInts(IntBuffer values, int count, int[] more, int added) {
+        int[] result = new int[count + added];
+        IntBuffer old = values.duplicate();
+        old.position(0);
+        old.get(result, 0, count);
+        System.arraycopy(more, 0, result, count, added);
+        return result;
+    }
+    
+    // Uses the positions, names and adjacency of a mapped snapshot.
+    private void loadSnapshot(GraphSnapshot snapshot) {
+        xs = snapshot.xs;
+        ys = snapshot.ys;
+        imageOfNode = snapshot.images;
+        names = snapshot.names;
+        adjacency = snapshot.adjacency;
+        edgeShades = snapshot.edgeShades;
+        minWeight = snapshot.minWeight;
+        maxWeight = snapshot.maxWeight;
+    }
+    
+    // Parses the .dot graph and the list file.
+    private void loadText(String graphFile, String listFile) {
+        long parseStart = System.nanoTime();
+        ArrayList<String> imageNames = new ArrayList<String>();
+        DotParser.Result parsed = new DotParser.Result();
         try {
-            BufferedReader graphReader;
             BufferedReader listReader;
             if(isURL) {
-                graphReader = new BufferedReader(new InputStreamReader(new URL(graphFile).openConnection().getInputStream()));
-                listReader = new BufferedReader(new InputStreamReader(new URL(listFile).openConnection().getInputStream()));
+                // Fetch both at once, and parse the graph while the list arrives.
+                Future<File> list = remote.fetch(listFile);
+                parsed = DotParser.parse(remote.get(graphFile));
+                listReader = new BufferedReader(new FileReader(list.get()));
             } else {
-                graphReader = new BufferedReader(new FileReader(graphFile));
                 listReader = new BufferedReader(new FileReader(listFile));
+                parsed = DotParser.parse(new File(graphFile));
             }
-            String nextGraphLine;
-            String nextListLine;
-            int count = 0;
 
             // Read image name from list file.
+            String nextListLine;
             while ((nextListLine = listReader.readLine()) != null) {
-               imageNames.addElement(nextListLine);
+               imageNames.add(nextListLine);
             }
+            listReader.close();
+         } catch(Exception e) {
+             System.out.println("Error reading input.");
+             e.printStackTrace();
+         }
+        PARSE_TIME.recordSince(parseStart);
+        long buildStart = System.nanoTime();
 
-            while((nextGraphLine = graphReader.readLine()) != null) {
-                // Read nodes.
-                if(nextGraphLine.contains("image") && 
-                   (nextGraphLine.contains("label=") || nextGraphLine.contains("width="))) {
-                    Node n = new Node(nextGraphLine);
-                    n.setName((String) imageNames.get(n.imageIndex));
-                    graph.add(n);
-                    indexHash.put(n.imageIndex, new Integer(count));
-                    count++;
-                }
-                
-                // Read edges.
-                if(nextGraphLine.contains("--")) {
-                    int node1 = Integer.parseInt(nextGraphLine.substring(nextGraphLine.indexOf("image") + 5, nextGraphLine.indexOf(" --")));
-                    int node2 = Integer.parseInt(nextGraphLine.substring(nextGraphLine.indexOf("-- image") + 8, nextGraphLine.indexOf(" [")));
-                    
-                    double weight;
-
-                    try {
-                       weight = Double.parseDouble(nextGraphLine.substring(nextGraphLine.indexOf("weight=\"") + 8, nextGraphLine.indexOf("\", pos=")));                       
-                    } catch (Exception e) {
-                       weight = 0.0;
-                    }
+        // Nodes keep their file order; map image indices to node positions.
+        ArrayList<String> problems = parsed.problems;
+        int[] nodeOfImage = new int[imageNames.size()];
+        Arrays.fill(nodeOfImage, -1);
+        int count = 0;
+        int[] nodeX = new int[parsed.nodeCount];
+        int[] nodeY = new int[parsed.nodeCount];
+        int[] nodeImages = new int[parsed.nodeCount];
+        String[] nodeNames = new String[parsed.nodeCount];
+        for(int i = 0; i < parsed.nodeCount; i++) {
+            int image = parsed.nodeImage[i];
+            if(image >= imageNames.size()) {
+                problems.add("node image" + image + " is not in the list file");
+                continue;
+            }
+            nodeX[count] = parsed.nodeX[i];
+            nodeY[count] = parsed.nodeY[i];
+            nodeImages[count] = image;
+            nodeNames[count] = imageName(imageNames.get(image));
+            nodeOfImage[image] = count;
+            count++;
+        }
+        xs = IntBuffer.wrap(Arrays.copyOf(nodeX, count));
+        ys = IntBuffer.wrap(Arrays.copyOf(nodeY, count));
+        imageOfNode = IntBuffer.wrap(Arrays.copyOf(nodeImages, count));
+        names = StringTable.of(Arrays.copyOf(nodeNames, count));
 
-                    int idx1 = (Integer) indexHash.get(node1);
-                    int idx2 = (Integer) indexHash.get(node2);
+        Adjacency.Builder edges = new Adjacency.Builder();
+        for(int e = 0; e < parsed.edgeCount; e++) {
+            int image1 = parsed.edgeImage1[e], image2 = parsed.edgeImage2[e];
+            int idx1 = image1 < nodeOfImage.length ? nodeOfImage[image1] : -1;
+            int idx2 = image2 < nodeOfImage.length ? nodeOfImage[image2] : -1;
+            if(idx1 < 0 || idx2 < 0) {
+                problems.add("edge image" + image1 + " -- image" + image2 + " refers to an unknown node");
+                continue;
+            }
+            double weight = parsed.edgeWeight[e];
+            edges.addEdge(idx1, idx2, weight);
 
-                    //try {
-                    //} catch (Exception e) {
-                    //   System.out.println("Error getting index of " + node1);
-                    //}
+            if(weight < minWeight) minWeight = weight;
+            if(weight > maxWeight) maxWeight = weight;
+        }
 
-                    graph.get(idx1).addNeighbor(idx2, weight);
-                    graph.get(idx2).addNeighbor(idx1, weight);
+        for(int i = 0; i < problems.size() && i < MAX_REPORTED_PROBLEMS; i++) {
+            System.out.println("Malformed input, " + problems.get(i));
+        }
+        if(problems.size() > MAX_REPORTED_PROBLEMS) {
+            System.out.println("... and " + (problems.size() - MAX_REPORTED_PROBLEMS) + " more problems.");
+        }
 
-                    if(weight < minWeight) minWeight = weight;
-                    if(weight > maxWeight) maxWeight = weight;
-                }
+        adjacency = edges.build(count);
+        computeEdgeShades();
+        BUILD_TIME.recordSince(buildStart);
+    }
+    
+    // Writes the loaded graph as a binary snapshot.
+    public void writeSnapshot(File file) throws IOException {
+        GraphSnapshot.write(file, xs, ys, imageOfNode, names, adjacency, edgeShades, minWeight, maxWeight);
+    }
+    
+    // Moves every node, e.g. to positions computed by GraphLayout.  Returns
+    // false, changing nothing, if the graph no longer has that many nodes.
+    // While the graph is shown this must run on the Swing event thread, and
+    // callers must redraw the base layer.
+    public synchronized boolean setPositions(int[] x, int[] y) {
+        if(x.length != nodeCount || y.length != nodeCount) return false;
+        xs = IntBuffer.wrap(x);
+        ys = IntBuffer.wrap(y);
+        grid = new NodeGrid(xs, ys);
+        if(hierarchy != null) hierarchy.updatePositions(this);
+        cut = null;
+        return true;
+    }
+    
+    // Writes the graph as a .dot file with its current positions, in the
+    // format DotParser reads, so it can be loaded again with the same list
+    // file.  Each edge is written once.  The file is written under a
+    // temporary name and renamed into place.
+    public synchronized void writeDot(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8")));
+        try {
+            double[] range = getRange();
+            out.println("graph G {");
+            out.println("\tgraph [bb=\"" + (long) range[0] + "," + (long) range[1] + "," + (long) range[2] + "," + (long) range[3] + "\"];");
+            out.println("\tnode [label=\"\\N\"];");
+            for(int i = 0; i < nodeCount; i++) {
+                int image = imageOfNode.get(i);
+                out.println("\timage" + image + " [label=\"" + image + "\", pos=\"" + xs.get(i) + "," + ys.get(i) +
+                            "\", width=\"0.75\", height=\"0.5\"];");
             }
-            
-            graphReader.close();
-            
-            System.out.println("Total Nodes: " + graph.size());
-            for(int i = 0; i < graph.size(); i++) {
-                if(graph.get(i).neighbors.size() == 0) System.out.println("Node " + i + " has no neighbors.");
-                if(graph.get(i).neighbors.size() == 1 && graph.get(graph.get(i).neighbors.get(0).intValue()).neighbors.size() == 1)
-                    System.out.println("Node " + i + " and " + graph.get(i).neighbors.get(0).intValue() +  " have only each other as neighbors.");
+            for(int i = 0; i < nodeCount; i++) {
+                boolean skipLoop = false;
+                for(int k = adjacency.start(i); k < adjacency.end(i); k++) {
+                    int j = adjacency.neighbor(k);
+                    if(j < i) continue;
+                    // A self loop has two entries; write the second.
+                    if(j == i && (skipLoop = !skipLoop)) continue;
+                    double weight = adjacency.weight(k);
+                    out.println("\timage" + imageOfNode.get(i) + " -- image" + imageOfNode.get(j) + " [weight=\"" +
+                                (weight == (long) weight ? Long.toString((long) weight) : Double.toString(weight)) + "\"];");
+                }
             }
-         } catch(Exception e) {
-             System.out.println("Error reading input.");
-             e.printStackTrace();
-         }
+            out.println("}");
+        } finally {
+            out.close();
+        }
+        if(out.checkError()) throw new IOException("error writing " + temp);
+        if(file.exists() && !file.delete()) throw new IOException("cannot replace " + file);
+        if(!temp.renameTo(file)) throw new IOException("cannot rename " + temp + " to " + file);
     }
     
     // Returns the coordinates of the bounding box that will fit all the nodes in the graph.
     public double[] getRange() {
+        if(nodeCount == 0) return new double[] {0, 0, 1, 1};
         double[] range = {Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
-        for(int i = 0; i < graph.size(); i++) {
-            if(graph.get(i).x < range[0]) range[0] = graph.get(i).x;
-            if(graph.get(i).y < range[1]) range[1] = graph.get(i).y;
-            if(graph.get(i).x > range[2]) range[2] = graph.get(i).x;
-            if(graph.get(i).y > range[3]) range[3] = graph.get(i).y;
+        for(int i = 0; i < nodeCount; i++) {
+            if(xs.get(i) < range[0]) range[0] = xs.get(i);
+            if(ys.get(i) < range[1]) range[1] = ys.get(i);
+            if(xs.get(i) > range[2]) range[2] = xs.get(i);
+            if(ys.get(i) > range[3]) range[3] = ys.get(i);
         }
         return range;
     }
     
-    // Sets the selected node from the given mouse coordinates.
-    public void setSelected(int mouseX, int mouseY, double startX, double startY, double endX, double endY, int panelWidth, int panelHeight) {
+    // Sets the selected node from the given mouse coordinates.  Returns true if
+    // the selection changed.
+    public boolean setSelected(int mouseX, int mouseY, double startX, double startY, double endX, double endY, int panelWidth, int panelHeight) {
+        long start = System.nanoTime();
+        int previous = selectedNode;
+        selectedNode = findNode(mouseX, mouseY, startX, startY, endX, endY, panelWidth, panelHeight);
+        if(selectedNode != previous) prefetchNeighbors();
+        SELECT_TIME.recordSince(start);
+        return selectedNode != previous;
+    }
+    
+    // Returns the screen area drawOverlay() paints for the selection: the
+    // selected node, its edges and its neighbors.  Returns null if nothing is
+    // selected.
+    public Rectangle getSelectionBounds(double startX, double startY, double endX, double endY, int panelWidth, int panelHeight) {
+        if(selectedNode < 0) return null;
         double multiplierX = panelWidth / (endX - startX);
         double multiplierY =  panelHeight / (endY - startY);
+        int x = (int)((xs.get(selectedNode) - startX) * multiplierX);
+        int y = (int)((ys.get(selectedNode) - startY) * multiplierY);
+        int minX = x, minY = y, maxX = x, maxY = y;
+        int margin = nodeSizes[selectedNode];
+        for(int k = adjacency.start(selectedNode); k < adjacency.end(selectedNode); k++) {
+            if(!edgeIndex.passes(k)) continue;
+            int j = adjacency.neighbor(k);
+            int neighborX = (int)((xs.get(j) - startX) * multiplierX);
+            int neighborY = (int)((ys.get(j) - startY) * multiplierY);
+            minX = Math.min(minX, neighborX);
+            minY = Math.min(minY, neighborY);
+            maxX = Math.max(maxX, neighborX);
+            maxY = Math.max(maxY, neighborY);
+            margin = Math.max(margin, nodeSizes[j]);
+        }
+        // Nodes extend NODE_SIZE / 2 around their centers.  Clamp first so that
+        // far off-screen neighbors cannot overflow the width.
+        margin = margin / 2 + 1;
+        minX = Math.max(minX, 0);
+        minY = Math.max(minY, 0);
+        maxX = Math.min(maxX, panelWidth);
+        maxY = Math.min(maxY, panelHeight);
+        Rectangle bounds = new Rectangle(minX - margin, minY - margin, maxX - minX + 2 * margin + 1, maxY - minY + 2 * margin + 1);
+        return bounds.intersection(new Rectangle(0, 0, panelWidth, panelHeight));
+    }
+    
+    // Returns the visible node within NODE_SIZE pixels of the mouse, or -1.
+    // With semantic zoom, searches only what the hierarchy's cut draws.
+    private int findNode(int mouseX, int mouseY, double startX, double startY, double endX, double endY, int panelWidth, int panelHeight) {
+        if(semanticZoom && hierarchy != null) {
+            return findInCut(mouseX, mouseY, startX, startY, endX, endY, panelWidth, panelHeight);
+        }
+        
+        double multiplierX = panelWidth / (endX - startX);
+        double multiplierY =  panelHeight / (endY - startY);
+        
+        // Use the spatial index unless the view is degenerate.
+        if(multiplierX > 0 && multiplierY > 0 && !Double.isInfinite(multiplierX) && !Double.isInfinite(multiplierY)) {
+            return grid.nearest(mouseX, mouseY, startX, startY, multiplierX, multiplierY, NODE_SIZE, edgeIndex);
+        }
         
         double closestDistance = Double.MAX_VALUE;
         int closestNode = -1;
-        for(int i = 0; i < graph.size(); i++) {
-            if(!(graph.get(i).neighbors.size() == 0 ||
-                 (graph.get(i).neighbors.size() == 1 && graph.get(graph.get(i).neighbors.get(0).intValue()).neighbors.size() == 1))) {
-                int drawX = (int)((graph.get(i).x - startX) * multiplierX);
-                int drawY = (int)((graph.get(i).y - startY) * multiplierY);
+        for(int i = 0; i < nodeCount; i++) {
+            if(!edgeIndex.isHidden(i)) {
+                int drawX = (int)((xs.get(i) - startX) * multiplierX);
+                int drawY = (int)((ys.get(i) - startY) * multiplierY);
                 
-                double distance = Math.sqrt((drawX - mouseX) * (drawX - mouseX) + (drawY - mouseY) * (drawY - mouseY));
+                double dx = (double) drawX - mouseX;
+                double dy = (double) drawY - mouseY;
+                double distance = Math.sqrt(dx * dx + dy * dy);
                 if(distance < closestDistance) {
                     closestDistance = distance;
                     closestNode = i;
@@ -133,30 +583,97 @@ public class Graph {
             }
         }
         
-        if(closestDistance < NODE_SIZE) selectedNode = closestNode;
-        else selectedNode = -1;
+        if(closestDistance < NODE_SIZE) return closestNode;
+        else return -1;
     }
     
-    // Returns the BufferedImage of the image for the selected node.
+    // Asks the image cache to decode the images of the selected node's
+    // PREFETCH_COUNT highest-weight neighbors, which are the ones most likely
+    // to be hovered next.  Clearing the selection cancels queued prefetches.
+    private void prefetchNeighbors() {
+        ArrayList<String> next = new ArrayList<String>();
+        if(selectedNode >= 0) {
+            // Keep the best entries sorted by descending weight.
+            int[] best = new int[Math.min(PREFETCH_COUNT, adjacency.degree(selectedNode))];
+            int found = 0;
+            for(int k = adjacency.start(selectedNode); k < adjacency.end(selectedNode); k++) {
+                int at = found;
+                while(at > 0 && adjacency.weight(best[at - 1]) < adjacency.weight(k)) at--;
+                if(at == best.length) continue;
+                int moved = Math.min(found, best.length - 1) - at;
+                System.arraycopy(best, at, best, at + 1, moved);
+                best[at] = k;
+                if(found < best.length) found++;
+            }
+            for(int i = 0; i < found; i++) next.add(names.get(adjacency.neighbor(best[i])));
+        }
+        imageCache.prefetch(next);
+    }
+    
+    // Returns the BufferedImage of the image for the selected node, or null if
+    // it is not decoded yet.  Loading happens in the background; listeners on
+    // getImageCache() are notified when it completes.
     public BufferedImage getSelectedImage() {
         if(selectedNode < 0) return null;
-        try {
+        return imageCache.get(names.get(selectedNode));
+    }
+    
+    // Returns true while the image for the selected node is being loaded.
+    public boolean isSelectedImageLoading() {
+        if(selectedNode < 0) return false;
+        return imageCache.isLoading(names.get(selectedNode));
+    }
+    
+    // Returns the cache holding decoded images.
+    public ImageCache getImageCache() {
+        return imageCache;
+    }
+    
+    // Sets the size images are shown at, so that they are decoded at no more
+    // than that resolution; 0 decodes them at full size.  Images decoded
+    // already are not affected.
+    public void setImageSize(int width, int height) {
+        imageWidth = width;
+        imageHeight = height;
+    }
+    
+    // Reads and decodes an image from the thumbnail store if it has the image,
+    // and otherwise from the images directory or URL.  Package private so that
+    // the benchmarks can time decoding without the cache.
+    BufferedImage readImage(String imageName) throws IOException {
+        long start = System.nanoTime();
+        BufferedImage image = null;
+        if(thumbnails != null) {
+            image = thumbnails.read(imageName);
+            if(image != null) IMAGE_BYTES.add(thumbnails.bytes(imageName));
+        }
+        if(image == null) {
             if(isURL) {
-                System.out.println("image url: " + imagesDirectory + graph.get(selectedNode).imageName);
-                return ImageIO.read(new URL(imagesDirectory + graph.get(selectedNode).imageName));
+                System.out.println("image url: " + imagesDirectory + imageName);
+                File file = remote.get(imagesDirectory + imageName);
+                image = ThumbnailStore.readScaled(file, imageWidth, imageHeight);
+                IMAGE_BYTES.add(file.length());
             } else {
-                return ImageIO.read(new File(imagesDirectory + graph.get(selectedNode).imageName));
+                File file = new File(imagesDirectory + imageName);
+                image = ThumbnailStore.readScaled(file, imageWidth, imageHeight);
+                IMAGE_BYTES.add(file.length());
             }
-        } catch(Exception e) {
-           System.out.println("Error while getting image " + selectedNode + "(" + graph.get(selectedNode).imageName + ")");
         }
-        return null;
+        IMAGE_DECODE_TIME.recordSince(start);
+        return image;
     }
     
     // Returns the basename of the image for the selected node.
     public String getSelectedBasename() {
         if(selectedNode < 0) return "";
-        return graph.get(selectedNode).imageName;
+        return names.get(selectedNode);
+    }
+    
+    // Returns the screen area covered by the drag box, or null if there is none.
+    public Rectangle getDragBoxBounds() {
+        if(dragX1 == -1) return null;
+        // drawOverlay() outlines dragX2 by dragY2 pixels from (dragX1, dragY1).
+        return new Rectangle(dragX1, dragY1, dragX2 + 1, dragY2 + 1);
     }
     
     // Updates the coordinates of the dragging box.
@@ -167,100 +684,391 @@ public class Graph {
         dragY2 = y2;
     }
     
-    // Draws the graph.
+    // Draws the graph: the static layer of all edges and nodes, with the
+    // selection and drag box on top.
     public void draw(Graphics g, double startX, double startY, double endX, double endY, int panelWidth, int panelHeight) {
+        drawBase(g, startX, startY, endX, endY, panelWidth, panelHeight);
+        drawOverlay(g, startX, startY, endX, endY, panelWidth, panelHeight);
+    }
+    
+    // Draws every edge and node, ignoring the selection, or the hierarchy's
+    // cut with semantic zoom.  The result only depends on the view, so
+    // callers may cache it.  Edges and nodes that fall entirely outside the
+    // panel are skipped.  When the visible part of the graph is dense
+    // compared to the panel size, short edges are rasterized straight into a
+    // pixel buffer and nodes that land exactly on top of an identical node
+    // are not redrawn.
+    public void drawBase(Graphics g, double startX, double startY, double endX, double endY, int panelWidth, int panelHeight) {
+        if(semanticZoom && hierarchy != null) {
+            drawSummary(g, startX, startY, endX, endY, panelWidth, panelHeight);
+            return;
+        }
+        long start = System.nanoTime();
         double multiplierX = panelWidth / (endX - startX);
         double multiplierY =  panelHeight / (endY - startY);
-        double normalizer = Math.log(Math.pow(maxWeight - minWeight, 1 / 255.0));
+        int n = nodeCount;
+        
+        // Project every node once and classify it against the viewport.
+        int[] drawXs = new int[n];
+        int[] drawYs = new int[n];
+        byte[] outcodes = new byte[n];
+        long visibleEntries = 0;
+        for(int i = 0; i < n; i++) {
+            drawXs[i] = (int)((xs.get(i) - startX) * multiplierX);
+            drawYs[i] = (int)((ys.get(i) - startY) * multiplierY);
+            outcodes[i] = outcode(drawXs[i], drawYs[i], panelWidth, panelHeight);
+            if(outcodes[i] == 0 && !edgeIndex.isHidden(i)) visibleEntries += edgeIndex.degree(i);
+        }
+        boolean dense = visibleEntries / 2 > (long) panelWidth * panelHeight / DENSE_PIXELS_PER_EDGE;
         
         // Draw edges.
-        for(int i = 0; i < graph.size(); i++) {
-            int drawX = (int)((graph.get(i).x - startX) * multiplierX);
-            int drawY = (int)((graph.get(i).y - startY) * multiplierY);
-            
-            for(int j = 0; j < graph.get(i).neighbors.size(); j++) {
-                if(i < graph.get(i).neighbors.get(j).intValue() &&
-                   !(graph.get(i).neighbors.size() == 1 && graph.get(graph.get(i).neighbors.get(0).intValue()).neighbors.size() == 1)) {
-                    Node neighbor = graph.get(graph.get(i).neighbors.get(j).intValue());
-                    int neighborX = (int)((neighbor.x - startX) * multiplierX);
-                    int neighborY = (int)((neighbor.y - startY) * multiplierY);
-                    
-                    int colorValue = (int)(Math.log(graph.get(i).weights.get(j).intValue() - minWeight + 1) / normalizer);
-                    g.setColor(new Color(0, 0, colorValue));
-                    g.drawLine(drawX, drawY, neighborX, neighborY);
+        EdgeRaster raster = dense ? new EdgeRaster(panelWidth, panelHeight) : null;
+        int edgesDrawn = 0;
+        if(edgeIndex.isFiltered()) {
+            // Scan only the passing edges, weakest first so the strongest end up on top.
+            for(int r = edgeIndex.getVisibleCount() - 1; r >= 0; r--) {
+                int i = edgeIndex.from(r), k = edgeIndex.entry(r);
+                if(edgeIndex.isHidden(i)) continue;
+                int j = adjacency.neighbor(k);
+                if(i == j || (outcodes[i] & outcodes[j]) != 0) continue;
+                if(drawBaseEdge(g, raster, k, drawXs[i], drawYs[i], drawXs[j], drawYs[j])) edgesDrawn++;
+            }
+        } else {
+            for(int i = 0; i < n; i++) {
+                if(adjacency.isHidden(i)) continue;
+                for(int k = adjacency.start(i); k < adjacency.end(i); k++) {
+                    int j = adjacency.neighbor(k);
+                    if(i >= j || (outcodes[i] & outcodes[j]) != 0) continue;
+                    if(drawBaseEdge(g, raster, k, drawXs[i], drawYs[i], drawXs[j], drawYs[j])) edgesDrawn++;
                 }
             }
         }
+        if(raster != null) raster.paint(g);
         
-        // Draw selected edges.
-        if(selectedNode >= 0) {
-            int drawX = (int)((graph.get(selectedNode).x - startX) * multiplierX);
-            int drawY = (int)((graph.get(selectedNode).y - startY) * multiplierY);
-            
-            for(int j = 0; j < graph.get(selectedNode).neighbors.size(); j++) {
-                Node neighbor = graph.get(graph.get(selectedNode).neighbors.get(j).intValue());
-                int neighborX = (int)((neighbor.x - startX) * multiplierX);
-                int neighborY = (int)((neighbor.y - startY) * multiplierY);
+        // Draw nodes.
+        byte[] drawnSizes = dense ? new byte[panelWidth * panelHeight] : null;
+        int nodesDrawn = 0;
+        for(int i = 0; i < n; i++) {
+            if(!edgeIndex.isHidden(i)) {
+                int drawX = drawXs[i];
+                int drawY = drawYs[i];
                 
-                int colorValue = (int)(Math.log(graph.get(selectedNode).weights.get(j).intValue() - minWeight + 1) / normalizer);
-                g.setColor(new Color(0, colorValue, 0));
-                g.drawLine(drawX, drawY, neighborX, neighborY);
+                int NODE_SIZE = nodeSizes[i];
+                if(!isOnScreen(drawX, drawY, NODE_SIZE, panelWidth, panelHeight)) continue;
+                if(drawnSizes != null && outcodes[i] == 0) {
+                    int pixel = drawY * panelWidth + drawX;
+                    // Highlighted nodes differ in color, so they get their own key.
+                    byte key = (byte)(isHighlighted(i) ? NODE_SIZE | 0x80 : NODE_SIZE);
+                    if(drawnSizes[pixel] == key) continue;
+                    drawnSizes[pixel] = key;
+                }
+                drawNode(g, i, drawX, drawY);
+                nodesDrawn++;
             }
         }
+        EDGES_DRAWN.record(edgesDrawn);
+        NODES_DRAWN.record(nodesDrawn);
+        DRAW_BASE_TIME.recordSince(start);
+    }
+    
+    // Draws the base layer from the hierarchy's cut for the view: single
+    // nodes as drawBase() draws them, super-nodes sized by how many nodes they
+    // hold, and one edge per pair of items shaded by its summed weight.
+    private void drawSummary(Graphics g, double startX, double startY, double endX, double endY, int panelWidth, int panelHeight) {
+        long start = System.nanoTime();
+        GraphHierarchy.Cut cut = getCut(startX, startY, endX, endY, panelWidth, panelHeight);
+        byte[] outcodes = new byte[cut.size];
+        for(int i = 0; i < cut.size; i++) outcodes[i] = outcode(cut.x[i], cut.y[i], panelWidth, panelHeight);
         
-        // Draw nodes.
-        for(int i = 0; i < graph.size(); i++) {
-            if(!(graph.get(i).neighbors.size() == 0 ||
-                 (graph.get(i).neighbors.size() == 1 && graph.get(graph.get(i).neighbors.get(0).intValue()).neighbors.size() == 1))) {
-                int drawX = (int)((graph.get(i).x - startX) * multiplierX);
-                int drawY = (int)((graph.get(i).y - startY) * multiplierY);
-                
-                // int NODE_SIZE = graph.get(i).neighbors.size() / 10 + 6;
-                int NODE_SIZE = (int) (Math.log(graph.get(i).neighbors.size()) + 6.0);
-                g.setColor(Color.red);
-                g.fillOval(drawX - NODE_SIZE / 2, drawY - NODE_SIZE / 2, NODE_SIZE, NODE_SIZE);
+        // Draw edges.
+        double normalizer = shadeNormalizer(minWeight, maxWeight);
+        int edgesDrawn = 0;
+        for(int e = 0; e < cut.edgeCount; e++) {
+            int a = cut.edgeFrom[e], b = cut.edgeTo[e];
+            if((outcodes[a] & outcodes[b]) != 0) continue;
+            int dx = cut.x[b] - cut.x[a], dy = cut.y[b] - cut.y[a];
+            if(dx >= -1 && dx <= 1 && dy >= -1 && dy <= 1) continue;
+            g.setColor(BLUES[shade(Math.min(cut.edgeWeight[e], maxWeight), minWeight, normalizer) & 0xff]);
+            g.drawLine(cut.x[a], cut.y[a], cut.x[b], cut.y[b]);
+            edgesDrawn++;
+        }
+        
+        // Draw nodes and super-nodes.
+        int nodesDrawn = 0;
+        for(int i = 0; i < cut.size; i++) {
+            int level = cut.level[i], c = cut.cluster[i];
+            if(level == 0) {
+                if(edgeIndex.isHidden(c) || !isOnScreen(cut.x[i], cut.y[i], nodeSizes[c], panelWidth, panelHeight)) continue;
+                drawNode(g, c, cut.x[i], cut.y[i]);
+            } else {
+                int size = clusterSize(hierarchy.getLeafCount(level, c));
+                if(!isOnScreen(cut.x[i], cut.y[i], size, panelWidth, panelHeight)) continue;
+                g.setColor(CLUSTER_COLOR);
+                g.fillOval(cut.x[i] - size / 2, cut.y[i] - size / 2, size, size);
                 g.setColor(Color.black);
-                g.drawOval(drawX - NODE_SIZE / 2, drawY - NODE_SIZE / 2, NODE_SIZE - 1, NODE_SIZE - 1);
+                g.drawOval(cut.x[i] - size / 2, cut.y[i] - size / 2, size - 1, size - 1);
+            }
+            nodesDrawn++;
+        }
+        EDGES_DRAWN.record(edgesDrawn);
+        NODES_DRAWN.record(nodesDrawn);
+        DRAW_SUMMARY_TIME.recordSince(start);
+    }
+    
+    // Returns the drawn diameter of a super-node holding the given number of nodes.
+    private static int clusterSize(int leaves) {
+        return (int) (Math.log(leaves) + 6.0);
+    }
+    
+    // Returns the node under the mouse in the hierarchy's cut for the view:
+    // the nearest single node, or the representative of the nearest
+    // super-node, within reach.  Returns -1 if there is none.
+    private int findInCut(int mouseX, int mouseY, double startX, double startY, double endX, double endY, int panelWidth, int panelHeight) {
+        GraphHierarchy.Cut cut = getCut(startX, startY, endX, endY, panelWidth, panelHeight);
+        int item = cut.nearest(mouseX, mouseY);
+        if(item < 0) return -1;
+        int node = cut.level[item] == 0 ? cut.cluster[item] : hierarchy.getRepresentative(cut.level[item], cut.cluster[item]);
+        return edgeIndex.isHidden(node) ? -1 : node;
+    }
+    
+    // Draws one edge of the base layer into the raster if it is short and
+    // there is one, or with the Graphics otherwise.  Returns false if the
+    // edge is too short to see.
+    private boolean drawBaseEdge(Graphics g, EdgeRaster raster, int entry, int x1, int y1, int x2, int y2) {
+        // Edges no longer than a pixel are covered by the node drawn on top.
+        int dx = x2 - x1, dy = y2 - y1;
+        if(dx >= -1 && dx <= 1 && dy >= -1 && dy <= 1) return false;
+        
+        if(raster != null && Math.max(Math.abs(dx), Math.abs(dy)) <= SHORT_EDGE_LENGTH) {
+            raster.drawLine(x1, y1, x2, y2, getEdgeColor(entry).getRGB());
+        } else {
+            drawEdge(g, entry, x1, y1, x2, y2);
+        }
+        return true;
+    }
+    
+    // Draws one edge entry of the base layer between two screen points.
+    public void drawEdge(Graphics g, int entry, int x1, int y1, int x2, int y2) {
+        g.setColor(getEdgeColor(entry));
+        g.drawLine(x1, y1, x2, y2);
+    }
+    
+    // Draws one node of the base layer centered at a screen point.
+    public void drawNode(Graphics g, int node, int x, int y) {
+        int NODE_SIZE = nodeSizes[node];
+        g.setColor(isHighlighted(node) ? Color.yellow : Color.red);
+        g.fillOval(x - NODE_SIZE / 2, y - NODE_SIZE / 2, NODE_SIZE, NODE_SIZE);
+        g.setColor(Color.black);
+        g.drawOval(x - NODE_SIZE / 2, y - NODE_SIZE / 2, NODE_SIZE - 1, NODE_SIZE - 1);
+    }
+    
+    // Returns the base layer color of an edge entry.
+    public Color getEdgeColor(int entry) {
+        return BLUES[edgeShades.get(entry) & 0xff];
+    }
+    
+    // Returns the drawn diameter of a node in pixels.
+    public int getNodeSize(int node) {
+        return nodeSizes[node];
+    }
+    
+    // Returns true if the node is in the highlighted component.
+    private boolean isHighlighted(int node) {
+        return highlightedComponent >= 0 && query.getComponent(node) == highlightedComponent;
+    }
+    
+    // Returns the connectivity query engine, labeling the components on first
+    // use.  Safe to call from any thread; the queries themselves are not.
+    public synchronized GraphQuery getQuery() {
+        if(query == null) query = new GraphQuery(adjacency);
+        return query;
+    }
+    
+    // Returns the selected node, or -1.
+    public int getSelectedNode() {
+        return selectedNode;
+    }
+    
+    // Returns the image name of a node.
+    public String getName(int node) {
+        return names.get(node);
+    }
+    
+    // Sets the path drawn over the graph, or null for none.
+    public void setHighlightedPath(int[] path) {
+        highlightedPath = path;
+    }
+    
+    // Sets the component whose nodes are drawn in yellow, or -1 for none.
+    // This changes the base layer, which callers must redraw.
+    public void setHighlightedComponent(int component) {
+        if(component >= 0) getQuery();
+        highlightedComponent = component;
+    }
+    
+    public int getHighlightedComponent() {
+        return highlightedComponent;
+    }
+    
+    // Returns the number of nodes.
+    public int getNodeCount() {
+        return nodeCount;
+    }
+    
+    // Returns the layout x coordinate of a node.
+    public int getX(int node) {
+        return xs.get(node);
+    }
+    
+    // Returns the layout y coordinate of a node.
+    public int getY(int node) {
+        return ys.get(node);
+    }
+    
+    // Returns the adjacency of the graph.
+    public Adjacency getAdjacency() {
+        return adjacency;
+    }
+    
+    // Draws and hit-tests only edges with weight >= threshold, and only the
+    // nodes that stay visible with just those edges.  Negative infinity shows
+    // every edge.  Clears the selection if it is hidden.  Callers must redraw
+    // the base layer.
+    public synchronized void setEdgeThreshold(double threshold) {
+        edgeIndex.setThreshold(threshold);
+        if(selectedNode >= 0 && edgeIndex.isHidden(selectedNode)) selectedNode = -1;
+        cut = null;
+    }
+    
+    // Returns the weight-sorted edges, with the current threshold.
+    public EdgeIndex getEdgeIndex() {
+        return edgeIndex;
+    }
+    
+    // Returns the lowest edge weight, or Double.MAX_VALUE if there are no edges.
+    public double getMinWeight() {
+        return minWeight;
+    }
+    
+    // Returns the highest edge weight, or 0 if there are no edges.
+    public double getMaxWeight() {
+        return maxWeight;
+    }
+    
+    // Installs a hierarchy built with new GraphHierarchy(graph), moving its
+    // clusters to the current positions.  Returns false, changing nothing, if
+    // the graph's edges have changed since it was built.  While the graph is
+    // shown this must run on the Swing event thread.
+    public synchronized boolean setHierarchy(GraphHierarchy hierarchy) {
+        if(hierarchy.getAdjacency() != adjacency) return false;
+        hierarchy.updatePositions(this);
+        this.hierarchy = hierarchy;
+        cut = null;
+        return true;
+    }
+    
+    // Returns the installed hierarchy, or null.  Changing the graph's edges
+    // removes it.
+    public GraphHierarchy getHierarchy() {
+        return hierarchy;
+    }
+    
+    // Draws and hit-tests the graph through the hierarchy, once there is one:
+    // zoomed out, clusters of nodes are drawn as single super-nodes.  Off by
+    // default.  Callers must redraw the base layer.
+    public void setSemanticZoom(boolean semanticZoom) {
+        this.semanticZoom = semanticZoom;
+    }
+    
+    public boolean isSemanticZoom() {
+        return semanticZoom;
+    }
+    
+    // Returns the hierarchy's cut for a view, reusing the last one if it was
+    // made for the same view.
+    private GraphHierarchy.Cut getCut(double startX, double startY, double endX, double endY, int panelWidth, int panelHeight) {
+        if(cut == null || !cut.isFor(startX, startY, endX, endY, panelWidth, panelHeight)) {
+            cut = hierarchy.cut(startX, startY, endX, endY, panelWidth, panelHeight, edgeIndex);
+            cut.reach = new int[cut.size];
+            for(int i = 0; i < cut.size; i++) {
+                if(cut.level[i] > 0 || !edgeIndex.isHidden(cut.cluster[i])) cut.reach[i] = NODE_SIZE;
             }
         }
+        return cut;
+    }
+    
+    // Draws the highlighted path, the selected node with its edges and
+    // neighbors, and the drag box.
+    // Only touches the selected node's neighborhood, so it is cheap enough to
+    // run on every hover over a cached drawBase() image.
+    public void drawOverlay(Graphics g, double startX, double startY, double endX, double endY, int panelWidth, int panelHeight) {
+        long start = System.nanoTime();
+        double multiplierX = panelWidth / (endX - startX);
+        double multiplierY =  panelHeight / (endY - startY);
+        
+        // Draw highlighted path.
+        if(highlightedPath != null) {
+            Graphics2D g2 = (Graphics2D) g;
+            Stroke stroke = g2.getStroke();
+            g2.setStroke(new BasicStroke(3));
+            g2.setColor(Color.orange);
+            for(int p = 0; p < highlightedPath.length; p++) {
+                int i = highlightedPath[p];
+                int drawX = (int)((xs.get(i) - startX) * multiplierX);
+                int drawY = (int)((ys.get(i) - startY) * multiplierY);
+                if(p + 1 < highlightedPath.length) {
+                    int j = highlightedPath[p + 1];
+                    int nextX = (int)((xs.get(j) - startX) * multiplierX);
+                    int nextY = (int)((ys.get(j) - startY) * multiplierY);
+                    if((outcode(drawX, drawY, panelWidth, panelHeight) & outcode(nextX, nextY, panelWidth, panelHeight)) == 0) {
+                        g2.drawLine(drawX, drawY, nextX, nextY);
+                    }
+                }
+                int NODE_SIZE = nodeSizes[i];
+                if(isOnScreen(drawX, drawY, NODE_SIZE, panelWidth, panelHeight)) {
+                    g2.drawOval(drawX - NODE_SIZE / 2, drawY - NODE_SIZE / 2, NODE_SIZE - 1, NODE_SIZE - 1);
+                }
+            }
+            g2.setStroke(stroke);
+        }
         
         if(selectedNode >= 0) {
+            int drawX = (int)((xs.get(selectedNode) - startX) * multiplierX);
+            int drawY = (int)((ys.get(selectedNode) - startY) * multiplierY);
+            int selectedOutcode = outcode(drawX, drawY, panelWidth, panelHeight);
+            
+            // Draw selected edges.
+            for(int k = adjacency.start(selectedNode); k < adjacency.end(selectedNode); k++) {
+                if(!edgeIndex.passes(k)) continue;
+                int j = adjacency.neighbor(k);
+                int neighborX = (int)((xs.get(j) - startX) * multiplierX);
+                int neighborY = (int)((ys.get(j) - startY) * multiplierY);
+                if((selectedOutcode & outcode(neighborX, neighborY, panelWidth, panelHeight)) != 0) continue;
+                g.setColor(GREENS[edgeShades.get(k) & 0xff]);
+                g.drawLine(drawX, drawY, neighborX, neighborY);
+            }
+            
             // Draw selected node neighbors.
-            for(int j = 0; j < graph.get(selectedNode).neighbors.size(); j++) {
-                Node neighbor = graph.get(graph.get(selectedNode).neighbors.get(j).intValue());
-                int neighborX = (int)((neighbor.x - startX) * multiplierX);
-                int neighborY = (int)((neighbor.y - startY) * multiplierY);
+            for(int k = adjacency.start(selectedNode); k < adjacency.end(selectedNode); k++) {
+                if(!edgeIndex.passes(k)) continue;
+                int j = adjacency.neighbor(k);
+                int neighborX = (int)((xs.get(j) - startX) * multiplierX);
+                int neighborY = (int)((ys.get(j) - startY) * multiplierY);
                 
-                int NODE_SIZE = (int) (Math.log(neighbor.neighbors.size()) + 6.0);
-                // int NODE_SIZE = neighbor.neighbors.size() / 10 + 6;
-                int colorValue = (int)(Math.log(graph.get(selectedNode).weights.get(j).intValue() - minWeight + 1) / normalizer);
-                g.setColor(new Color(0, colorValue, 0));
+                int NODE_SIZE = nodeSizes[j];
+                if(!isOnScreen(neighborX, neighborY, NODE_SIZE, panelWidth, panelHeight)) continue;
+                g.setColor(GREENS[edgeShades.get(k) & 0xff]);
                 g.fillOval(neighborX - NODE_SIZE / 2, neighborY - NODE_SIZE / 2, NODE_SIZE, NODE_SIZE);
                 g.setColor(Color.orange);
                 g.drawOval(neighborX - NODE_SIZE / 2, neighborY - NODE_SIZE / 2, NODE_SIZE - 1, NODE_SIZE - 1);
             }
             
             // Draw selected node.
-            int drawX = (int)((graph.get(selectedNode).x - startX) * multiplierX);
-            int drawY = (int)((graph.get(selectedNode).y - startY) * multiplierY);
-            
-            int NODE_SIZE = (int) (Math.log(graph.get(selectedNode).neighbors.size()) + 6.0);
-            // int NODE_SIZE = graph.get(selectedNode).neighbors.size() / 10 + 6;
+            int NODE_SIZE = nodeSizes[selectedNode];
             g.setColor(Color.magenta);
             g.fillOval(drawX - NODE_SIZE / 2, drawY - NODE_SIZE / 2, NODE_SIZE, NODE_SIZE);
             g.setColor(Color.black);
             g.drawOval(drawX - NODE_SIZE / 2, drawY - NODE_SIZE / 2, NODE_SIZE - 1, NODE_SIZE - 1);
-            
-            // Draw selected node image
-            /*
-            String filename = imagesDirectory + graph.get(selectedNode).imageName;
-            try {
-                BufferedImage image = ImageIO.read(new File(filename));
-                g.drawImage(image, drawX, drawY, 400, 400, Color.black, null);
-            } catch(Exception e) {
-                System.out.println("Error while drawing image: " + filename);
-            }
-            */
         }
         
         // Draw drag box.
@@ -268,54 +1076,115 @@ public class Graph {
             g.setColor(Color.black);
             g.drawRect(dragX1, dragY1, dragX2, dragY2);
         }
+        DRAW_OVERLAY_TIME.recordSince(start);
     }
     
-    // This class represents a node in the graph.
-    private class Node {
-        public ArrayList<Integer> neighbors;
-        public ArrayList<Double> weights;
-        public int x;
-        public int y;
-        public String imageName;
-        public int imageIndex;
-
-        public Node(String nodeLine) {
-            int startIdx = nodeLine.indexOf("pos=\"") + 5;
-            int endIdx = startIdx + nodeLine.substring(startIdx).indexOf("\"");
-            String pos = nodeLine.substring(startIdx, endIdx);
-            // System.out.println(pos);
-            // x = Integer.parseInt(pos.substring(0, pos.indexOf(",")));
-            // y = Integer.parseInt(pos.substring(pos.indexOf(",") + 1, pos.length()));
-            x = Math.round(Float.parseFloat(pos.substring(0, pos.indexOf(","))));
-            y = Math.round(Float.parseFloat(pos.substring(pos.indexOf(",") + 1, pos.length())));
-            neighbors = new ArrayList<Integer>();
-            weights = new ArrayList<Double>();
-            imageIndex = Integer.parseInt(nodeLine.substring(nodeLine.indexOf("i")+5, nodeLine.indexOf("[")-1));
+    // Returns a bit mask telling which sides of the panel a point lies beyond.
+    // An edge whose endpoints share a bit cannot cross the panel.
+    private static byte outcode(int x, int y, int panelWidth, int panelHeight) {
+        int code = 0;
+        if(x < 0) code |= 1;
+        else if(x >= panelWidth) code |= 2;
+        if(y < 0) code |= 4;
+        else if(y >= panelHeight) code |= 8;
+        return (byte) code;
+    }
+    
+    // Returns true if a node of the given size centered at (x, y) overlaps the panel.
+    private static boolean isOnScreen(int x, int y, int size, int panelWidth, int panelHeight) {
+        return x + size >= 0 && y + size >= 0 && x - size < panelWidth && y - size < panelHeight;
+    }
+    
+    // Precomputes the drawn size of every node.
+    private void computeNodeSizes() {
+        nodeSizes = new byte[nodeCount];
+        for(int i = 0; i < nodeCount; i++) {
+            nodeSizes[i] = nodeSize(adjacency.degree(i));
         }
-
-        public Node(String nodeLine, String nameLine) {
-            String pos = nodeLine.substring(nodeLine.indexOf("pos=\"") + 5, nodeLine.indexOf("\", width="));
-            x = Integer.parseInt(pos.substring(0, pos.indexOf(",")));
-            y = Integer.parseInt(pos.substring(pos.indexOf(",") + 1, pos.length()));
-            neighbors = new ArrayList<Integer>();
-            weights = new ArrayList<Double>();
-
-            // System.out.println(nodeLine);
-            imageName = nameLine.substring(0, nameLine.lastIndexOf(".")) + ".jpg";
-            imageIndex = Integer.parseInt(nodeLine.substring(nodeLine.indexOf("i")+5, nodeLine.indexOf("[")-1));
+    }
+    
+    private static byte nodeSize(int degree) {
+        return degree > 0 ? (byte) (int) (Math.log(degree) + 6.0) : 0;
+    }
+    
+    // Precomputes the 0-255 shade of every edge entry, on a log scale between
+    // minWeight and maxWeight.
+    private void computeEdgeShades() {
+        double normalizer = shadeNormalizer(minWeight, maxWeight);
+        byte[] shades = new byte[adjacency.entries()];
+        for(int k = 0; k < shades.length; k++) shades[k] = shade(adjacency.weight(k), minWeight, normalizer);
+        edgeShades = ByteBuffer.wrap(shades);
+    }
+    
+    private static double shadeNormalizer(double minWeight, double maxWeight) {
+        return Math.log(Math.pow(maxWeight - minWeight, 1 / 255.0));
+    }
+    
+    private static byte shade(double weight, double minWeight, double normalizer) {
+        int colorValue = (int)(Math.log((int) weight - minWeight + 1) / normalizer);
+        if(colorValue < 0) colorValue = 0;
+        if(colorValue > 255) colorValue = 255;
+        return (byte) colorValue;
+    }
+    
+    // Off-screen pixel buffer that dense edge sets are rasterized into, so a
+    // frame costs one image blit instead of one drawLine call per edge.
+    private static class EdgeRaster {
+        private final BufferedImage image;
+        private final int[] pixels;
+        private final int width, height;
+        
+        public EdgeRaster(int width, int height) {
+            this.width = width;
+            this.height = height;
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
         }
         
-        public void setName(String nameLine) {
-           if (nameLine.contains(".pgm")) {
-              imageName = nameLine.substring(0, nameLine.lastIndexOf(".pgm")) + ".jpg";
-           } else {
-              imageName = nameLine.substring(0, nameLine.lastIndexOf(".jpg")) + ".jpg";
-           }
+        // Draws a one pixel wide line, clipped to the buffer, with Bresenham's algorithm.
+        public void drawLine(int x1, int y1, int x2, int y2, int argb) {
+            // Clip with Liang-Barsky so long off-screen segments cost nothing.
+            double t0 = 0, t1 = 1;
+            double dx = (double) x2 - x1, dy = (double) y2 - y1;
+            double[] p = {-dx, dx, -dy, dy};
+            double[] q = {x1, width - 1 - (double) x1, y1, height - 1 - (double) y1};
+            for(int side = 0; side < 4; side++) {
+                if(p[side] == 0) {
+                    if(q[side] < 0) return;
+                } else {
+                    double t = q[side] / p[side];
+                    if(p[side] < 0) { if(t > t1) return; if(t > t0) t0 = t; }
+                    else { if(t < t0) return; if(t < t1) t1 = t; }
+                }
+            }
+            int ax = (int) Math.round(x1 + t0 * dx), ay = (int) Math.round(y1 + t0 * dy);
+            int bx = (int) Math.round(x1 + t1 * dx), by = (int) Math.round(y1 + t1 * dy);
+            
+            int stepX = ax < bx ? 1 : -1, stepY = ay < by ? 1 : -1;
+            int errX = Math.abs(bx - ax), errY = -Math.abs(by - ay);
+            int err = errX + errY;
+            while(true) {
+                if(ax >= 0 && ay >= 0 && ax < width && ay < height) pixels[ay * width + ax] = argb;
+                if(ax == bx && ay == by) break;
+                int e2 = 2 * err;
+                if(e2 >= errY) { err += errY; ax += stepX; }
+                if(e2 <= errX) { err += errX; ay += stepY; }
+            }
         }
+        
+        public void paint(Graphics g) {
+            g.drawImage(image, 0, 0, null);
+        }
+    }
 
-        public void addNeighbor(int neighbor, double weight) {
-            neighbors.add(new Integer(neighbor));
-            weights.add(new Double(weight));
+    // Converts a line of the list file to the name of the image to display:
+    // any trailing fields are dropped and .pgm images are shown as .jpg.
+    static String imageName(String nameLine) {
+        if (nameLine.contains(".pgm")) {
+            return nameLine.substring(0, nameLine.lastIndexOf(".pgm")) + ".jpg";
+        } else if (nameLine.contains(".jpg")) {
+            return nameLine.substring(0, nameLine.lastIndexOf(".jpg")) + ".jpg";
         }
+        return nameLine;
     }
 }
\ No newline at end of file
@@ -8,6 +8,7 @@ import javax.imageio.*;
 public class GraphApplet extends JApplet {
     // Called when the applet is initialized.
     public void init() {
+        Metrics.startReporting();
         Graph graph = new Graph(getParameter("graphURL"), getParameter("listURL"), getParameter("imageURL") + "/", true);
         JPanel graphViewer = new GraphViewer(graph);
         add(graphViewer, BorderLayout.CENTER);
@@ -0,0 +1,627 @@
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Multilevel clustering of a graph, for drawing it zoomed out without
+// painting every node and edge ("semantic zoom").  Level 0 is the graph
+// itself; each further level merges the clusters of the one below in pairs,
+// so it has at most half as many, until at most MAX_ROOTS are left.
+//
+// Pairs come from heavy-edge matching: in a few rounds every unmatched
+// cluster proposes to the unmatched neighbor it has the heaviest edge to,
+// and two clusters that propose to each other are matched.  A round only
+// reads the previous round's matches, so it runs in parallel over ranges of
+// clusters with fork/join.  Clusters left over, such as those whose
+// neighbors were all taken, are paired with the next one along a Z-order
+// curve through their positions.  Either way only clusters within
+// NEAR_SPACINGS times the level's average spacing are paired, so a cluster
+// stays in one place on screen even where the layout has put strongly
+// connected nodes far apart; clusters without a partner wait for a coarser
+// level.  An edge between two clusters carries the summed weight of the
+// edges between their members.  Nodes that are never drawn
+// (Adjacency.isHidden()) belong to no cluster.
+//
+// A cluster sits at the center of mass of its nodes and has a radius that
+// contains them all.  cut() chooses what to draw for a view: starting from
+// the top level, a cluster that overlaps the panel and is more than
+// EXPAND_PIXELS in radius on screen is replaced by its children; everything
+// else is drawn as one super-node.  Clusters off the panel are never
+// expanded, so the size of a cut, and the cost of drawing and hit-testing it,
+// depends on what is on screen rather than on the size of the graph.
+public class GraphHierarchy {
+    private static final int PARALLEL_THRESHOLD = 1 << 10;
+    private static final int MATCH_ROUNDS = 3;
+    private static final double NEAR_SPACINGS = 2;
+    // A level that merges fewer clusters than this pairs them regardless of distance.
+    private static final double MIN_COARSENING = 0.75;
+    private static final int MAX_ROOTS = 64;
+    private static final double EXPAND_PIXELS = 16;
+    // Clusters this close to the panel are expanded too, as their nodes may reach into it.
+    private static final int MARGIN_PIXELS = 16;
+    private static final int EXPANDED = -1;
+    private static final Metrics.Histogram BUILD_TIME = Metrics.timer("hierarchy.build");
+    private static final Metrics.Histogram CUT_TIME = Metrics.timer("hierarchy.cut");
+
+    private final Adjacency adjacency;
+    private final ArrayList<Level> levels = new ArrayList<Level>();
+    private int frame;
+
+    // One level of the hierarchy.  The children of cluster c are the clusters
+    // children[childStart[c]] .. children[childStart[c + 1] - 1] of the level
+    // below, and parent maps each cluster to the cluster of the level above it
+    // was merged into, or -1.
+    private static class Level {
+        final int size;
+        final Adjacency edges;
+        final int[] childStart, children;
+        final int[] leafCount, representative;
+        int[] parent;
+        double[] x, y, radius;
+        // The cut() that last reached each cluster, and the cluster's place in
+        // that cut, or EXPANDED.
+        int[] reached, place;
+
+        Level(Adjacency edges, int[] childStart, int[] children, int[] leafCount, int[] representative) {
+            this.size = leafCount.length;
+            this.edges = edges;
+            this.childStart = childStart;
+            this.children = children;
+            this.leafCount = leafCount;
+            this.representative = representative;
+            x = new double[size];
+            y = new double[size];
+            radius = new double[size];
+        }
+    }
+
+    // The clusters drawn for one view, with their screen positions, and the
+    // edges between them.  Every edge is listed once, from the item on the
+    // finer level, with the summed weight of the graph edges it stands for.
+    public static class Cut {
+        public int size;
+        public int[] level = new int[64], cluster = new int[64], x = new int[64], y = new int[64];
+        public int edgeCount;
+        public int[] edgeFrom = new int[64], edgeTo = new int[64];
+        public double[] edgeWeight = new double[64];
+        // How far from each item the mouse may be to hit it, or 0 if it
+        // cannot be hit.  Set by the caller before using nearest().
+        public int[] reach;
+        private double startX, startY, endX, endY;
+        private int panelWidth, panelHeight;
+        // The items that can be hit, bucketed into square cells as wide as
+        // the longest reach, packed like NodeGrid's.  Built on first use.
+        private int cellSize, cellsX, cellsY;
+        private int[] cellStart, cellItems;
+
+        // Returns true if the cut was made for this view.
+        public boolean isFor(double startX, double startY, double endX, double endY, int panelWidth, int panelHeight) {
+            return startX == this.startX && startY == this.startY && endX == this.endX && endY == this.endY &&
+                   panelWidth == this.panelWidth && panelHeight == this.panelHeight;
+        }
+
+        // Returns the item nearest to the mouse and strictly within its
+        // reach, ties going to the lowest index, or -1.
+        public int nearest(int mouseX, int mouseY) {
+            if(cellStart == null) buildCells();
+            int cx = mouseX / cellSize, cy = mouseY / cellSize;
+            double closestDistance = Double.MAX_VALUE;
+            int closest = -1;
+            for(int y = Math.max(cy - 1, 0); y <= Math.min(cy + 1, cellsY - 1); y++) {
+                for(int x = Math.max(cx - 1, 0); x <= Math.min(cx + 1, cellsX - 1); x++) {
+                    int c = y * cellsX + x;
+                    for(int k = cellStart[c]; k < cellStart[c + 1]; k++) {
+                        int i = cellItems[k];
+                        double dx = (double) this.x[i] - mouseX;
+                        double dy = (double) this.y[i] - mouseY;
+                        double distance = Math.sqrt(dx * dx + dy * dy);
+                        if(distance < reach[i] && (distance < closestDistance || (distance == closestDistance && i < closest))) {
+                            closestDistance = distance;
+                            closest = i;
+                        }
+                    }
+                }
+            }
+            return closest;
+        }
+
+        // Buckets the items within reach of the panel.  The mouse is always on
+        // the panel, so any item it can hit lies in its cell or a neighboring one.
+        private void buildCells() {
+            cellSize = 1;
+            for(int i = 0; i < size; i++) cellSize = Math.max(cellSize, reach[i]);
+            cellsX = panelWidth / cellSize + 1;
+            cellsY = panelHeight / cellSize + 1;
+            cellStart = new int[cellsX * cellsY + 1];
+            int[] cellOf = new int[size];
+            for(int i = 0; i < size; i++) {
+                cellOf[i] = -1;
+                if(reach[i] == 0 || x[i] <= -cellSize || y[i] <= -cellSize ||
+                   x[i] >= cellsX * cellSize || y[i] >= cellsY * cellSize) continue;
+                cellOf[i] = Math.max(y[i] / cellSize, 0) * cellsX + Math.max(x[i] / cellSize, 0);
+                cellStart[cellOf[i] + 1]++;
+            }
+            for(int c = 0; c < cellsX * cellsY; c++) cellStart[c + 1] += cellStart[c];
+            int[] cursor = Arrays.copyOf(cellStart, cellsX * cellsY);
+            cellItems = new int[cellStart[cellsX * cellsY]];
+            for(int i = 0; i < size; i++) {
+                if(cellOf[i] >= 0) cellItems[cursor[cellOf[i]]++] = i;
+            }
+        }
+
+        private int add(int l, int c, int drawX, int drawY) {
+            if(size == level.length) {
+                level = Arrays.copyOf(level, 2 * size);
+                cluster = Arrays.copyOf(cluster, 2 * size);
+                x = Arrays.copyOf(x, 2 * size);
+                y = Arrays.copyOf(y, 2 * size);
+            }
+            level[size] = l;
+            cluster[size] = c;
+            x[size] = drawX;
+            y[size] = drawY;
+            return size++;
+        }
+
+        private void addEdge(int from, int to, double weight) {
+            if(edgeCount == edgeFrom.length) {
+                edgeFrom = Arrays.copyOf(edgeFrom, 2 * edgeCount);
+                edgeTo = Arrays.copyOf(edgeTo, 2 * edgeCount);
+                edgeWeight = Arrays.copyOf(edgeWeight, 2 * edgeCount);
+            }
+            edgeFrom[edgeCount] = from;
+            edgeTo[edgeCount] = to;
+            edgeWeight[edgeCount] = weight;
+            edgeCount++;
+        }
+    }
+
+    // Builds the hierarchy of the graph's current adjacency and positions.
+    // Takes a while on large graphs, so it may run on any thread; install the
+    // result with Graph.setHierarchy(), which also picks up positions that
+    // changed in the meantime.
+    public GraphHierarchy(Graph graph) {
+        long start = System.nanoTime();
+        adjacency = graph.getAdjacency();
+        int n = adjacency.size();
+        int[] leafCount = new int[n];
+        int[] representative = new int[n];
+        for(int i = 0; i < n; i++) {
+            leafCount[i] = adjacency.isHidden(i) ? 0 : 1;
+            representative[i] = i;
+        }
+        Level leaves = new Level(adjacency, null, null, leafCount, representative);
+        for(int i = 0; i < n; i++) {
+            leaves.x[i] = graph.getX(i);
+            leaves.y[i] = graph.getY(i);
+        }
+        levels.add(leaves);
+        int[] ancestor = leafAncestors();
+        Level top = leaves;
+        while(countActive(top) > MAX_ROOTS && (top = coarsen(top)) != null) {
+            Level fine = levels.get(levels.size() - 1);
+            for(int i = 0; i < n; i++) {
+                if(ancestor[i] >= 0) ancestor[i] = fine.parent[ancestor[i]];
+            }
+            computePositions(top, fine, ancestor);
+            levels.add(top);
+        }
+        BUILD_TIME.recordSince(start);
+    }
+
+    // Returns the adjacency the hierarchy was built from.
+    public Adjacency getAdjacency() {
+        return adjacency;
+    }
+
+    // Returns the number of levels, counting the graph itself.
+    public int getLevelCount() {
+        return levels.size();
+    }
+
+    // Returns the number of clusters on a level.
+    public int getClusterCount(int level) {
+        return countActive(levels.get(level));
+    }
+
+    // Returns the number of graph nodes in a cluster.
+    public int getLeafCount(int level, int cluster) {
+        return levels.get(level).leafCount[cluster];
+    }
+
+    // Returns the node of highest degree in a cluster, which stands for it
+    // when the cluster is selected.
+    public int getRepresentative(int level, int cluster) {
+        return levels.get(level).representative[cluster];
+    }
+
+    // Moves the clusters after the graph's nodes have moved.  The clusters
+    // themselves stay the same.
+    public void updatePositions(Graph graph) {
+        Level leaves = levels.get(0);
+        for(int i = 0; i < leaves.size; i++) {
+            leaves.x[i] = graph.getX(i);
+            leaves.y[i] = graph.getY(i);
+        }
+        int[] ancestor = leafAncestors();
+        for(int l = 1; l < levels.size(); l++) {
+            Level fine = levels.get(l - 1);
+            for(int i = 0; i < leaves.size; i++) {
+                if(ancestor[i] >= 0) ancestor[i] = fine.parent[ancestor[i]];
+            }
+            computePositions(levels.get(l), fine, ancestor);
+        }
+    }
+    
+    // Returns each node itself, or -1 for nodes in no cluster.
+    private int[] leafAncestors() {
+        Level leaves = levels.get(0);
+        int[] ancestor = new int[leaves.size];
+        for(int i = 0; i < leaves.size; i++) ancestor[i] = leaves.leafCount[i] > 0 ? i : -1;
+        return ancestor;
+    }
+
+    // Chooses the clusters to draw for a view and collects the edges between
+    // them.  Graph edges that fail the index's threshold, and nodes it hides,
+    // are left out where single nodes are drawn; super-nodes summarize every
+    // edge.  Not thread safe: cuts share scratch arrays in the levels.
+    public Cut cut(double startX, double startY, double endX, double endY, int panelWidth, int panelHeight, EdgeIndex edges) {
+        long start = System.nanoTime();
+        double multiplierX = panelWidth / (endX - startX);
+        double multiplierY =  panelHeight / (endY - startY);
+        double scale = Math.min(Math.abs(multiplierX), Math.abs(multiplierY));
+        frame++;
+        Cut cut = new Cut();
+        cut.startX = startX;
+        cut.startY = startY;
+        cut.endX = endX;
+        cut.endY = endY;
+        cut.panelWidth = panelWidth;
+        cut.panelHeight = panelHeight;
+
+        // Walk down from the top level, level and cluster interleaved on the stack.
+        int[] stack = new int[64];
+        int depth = 0;
+        Level top = levels.get(levels.size() - 1);
+        for(int c = top.size - 1; c >= 0; c--) {
+            if(top.leafCount[c] == 0) continue;
+            if(depth == stack.length) stack = Arrays.copyOf(stack, 2 * depth);
+            stack[depth++] = levels.size() - 1;
+            stack[depth++] = c;
+        }
+        while(depth > 0) {
+            int c = stack[--depth], l = stack[--depth];
+            Level level = levels.get(l);
+            if(level.reached == null) {
+                level.reached = new int[level.size];
+                level.place = new int[level.size];
+            }
+            level.reached[c] = frame;
+            double drawX = (level.x[c] - startX) * multiplierX;
+            double drawY = (level.y[c] - startY) * multiplierY;
+            double reach = level.radius[c] * scale;
+            boolean onScreen = drawX + reach + MARGIN_PIXELS >= 0 && drawY + reach + MARGIN_PIXELS >= 0 &&
+                               drawX - reach - MARGIN_PIXELS < panelWidth && drawY - reach - MARGIN_PIXELS < panelHeight;
+            int childCount = l == 0 ? 0 : level.childStart[c + 1] - level.childStart[c];
+            if(onScreen && (reach > EXPAND_PIXELS || childCount == 1)) {
+                level.place[c] = EXPANDED;
+                if(depth + 2 * childCount > stack.length) stack = Arrays.copyOf(stack, 2 * (depth + 2 * childCount));
+                for(int m = level.childStart[c + 1] - 1; m >= level.childStart[c]; m--) {
+                    stack[depth++] = l - 1;
+                    stack[depth++] = level.children[m];
+                }
+            } else {
+                level.place[c] = cut.add(l, c, (int) drawX, (int) drawY);
+            }
+        }
+
+        // Each item sums its edges by the item that now stands for the other end.
+        double[] sums = new double[cut.size];
+        int[] mark = new int[cut.size];
+        int[] touched = new int[cut.size];
+        Arrays.fill(mark, -1);
+        for(int i = 0; i < cut.size; i++) {
+            int l = cut.level[i], c = cut.cluster[i];
+            Adjacency levelEdges = levels.get(l).edges;
+            boolean leaf = l == 0 && edges != null;
+            if(leaf && edges.isHidden(c)) continue;
+            int found = 0;
+            for(int e = levelEdges.start(c); e < levelEdges.end(c); e++) {
+                int d = levelEdges.neighbor(e);
+                if(leaf && (!edges.passes(e) || edges.isHidden(d))) continue;
+                int other = placeOf(l, d);
+                if(other == EXPANDED || other == i) continue;
+                // Two items on the same level both see their edge; the first draws it.
+                if(cut.level[other] == l && other < i) continue;
+                if(mark[other] != i) {
+                    mark[other] = i;
+                    sums[other] = 0;
+                    touched[found++] = other;
+                }
+                sums[other] += levelEdges.weight(e);
+            }
+            for(int t = 0; t < found; t++) cut.addEdge(i, touched[t], sums[touched[t]]);
+        }
+        CUT_TIME.recordSince(start);
+        return cut;
+    }
+
+    // Returns the place in the current cut of the item that stands for a
+    // cluster: the cluster itself or its nearest drawn ancestor, or EXPANDED
+    // if the cluster was split into items of its own.
+    private int placeOf(int l, int c) {
+        Level level = levels.get(l);
+        while(level.reached == null || level.reached[c] != frame) {
+            c = level.parent[c];
+            level = levels.get(++l);
+        }
+        return level.place[c];
+    }
+
+    private static int countActive(Level level) {
+        int active = 0;
+        for(int c = 0; c < level.size; c++) {
+            if(level.leafCount[c] > 0) active++;
+        }
+        return active;
+    }
+
+    // Merges the clusters of a level in pairs.  Returns null if no two
+    // clusters can be merged.
+    private Level coarsen(Level fine) {
+        int n = fine.size;
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        int active = 0;
+        for(int u = 0; u < n; u++) {
+            if(fine.leafCount[u] == 0) continue;
+            minX = Math.min(minX, fine.x[u]);
+            minY = Math.min(minY, fine.y[u]);
+            maxX = Math.max(maxX, fine.x[u]);
+            maxY = Math.max(maxY, fine.y[u]);
+            active++;
+        }
+        double near = NEAR_SPACINGS * Math.sqrt((maxX - minX) * (maxY - minY) / active);
+        int[] mate = new int[n];
+        int[] proposal = new int[n];
+        Arrays.fill(mate, -1);
+        for(int round = 0; round < MATCH_ROUNDS; round++) {
+            ForkJoinPool.commonPool().invoke(new Matching(fine, mate, proposal, near, true, 0, n));
+            ForkJoinPool.commonPool().invoke(new Matching(fine, mate, proposal, near, false, 0, n));
+        }
+
+        // Pair the rest along a Z-order curve over the level's bounding box.
+        int left = 0;
+        for(int u = 0; u < n; u++) {
+            if(fine.leafCount[u] > 0 && mate[u] < 0) left++;
+        }
+        long[] keys = new long[left];
+        double scaleX = maxX > minX ? 0xffff / (maxX - minX) : 0;
+        double scaleY = maxY > minY ? 0xffff / (maxY - minY) : 0;
+        left = 0;
+        for(int u = 0; u < n; u++) {
+            if(fine.leafCount[u] == 0 || mate[u] >= 0) continue;
+            long code = interleave((int) ((fine.x[u] - minX) * scaleX), (int) ((fine.y[u] - minY) * scaleY));
+            keys[left++] = code << 32 | u;
+        }
+        Arrays.parallelSort(keys);
+        pairAlongCurve(fine, keys, mate, near);
+        int pairs = 0;
+        for(int u = 0; u < n; u++) {
+            if(mate[u] > u) pairs++;
+        }
+        // Where few clusters are close, as when nodes lie on a line, merge
+        // regardless rather than add a level per pair.
+        if(active - pairs > MIN_COARSENING * active) pairAlongCurve(fine, keys, mate, Double.POSITIVE_INFINITY);
+
+        int[] parent = new int[n];
+        Arrays.fill(parent, -1);
+        int count = 0;
+        for(int u = 0; u < n; u++) {
+            if(fine.leafCount[u] == 0 || parent[u] >= 0) continue;
+            parent[u] = count;
+            if(mate[u] >= 0) parent[mate[u]] = count;
+            count++;
+        }
+        if(count == active) return null;
+        fine.parent = parent;
+
+        int[] childStart = new int[count + 1];
+        for(int u = 0; u < n; u++) {
+            if(parent[u] >= 0) childStart[parent[u] + 1]++;
+        }
+        for(int c = 0; c < count; c++) childStart[c + 1] += childStart[c];
+        int[] children = new int[active];
+        int[] cursor = Arrays.copyOf(childStart, count);
+        for(int u = 0; u < n; u++) {
+            if(parent[u] >= 0) children[cursor[parent[u]]++] = u;
+        }
+
+        int[] leafCount = new int[count];
+        int[] representative = new int[count];
+        for(int c = 0; c < count; c++) {
+            representative[c] = -1;
+            for(int m = childStart[c]; m < childStart[c + 1]; m++) {
+                int u = children[m];
+                leafCount[c] += fine.leafCount[u];
+                int candidate = fine.representative[u];
+                if(representative[c] < 0 || adjacency.degree(candidate) > adjacency.degree(representative[c])) {
+                    representative[c] = candidate;
+                }
+            }
+        }
+
+        // Count each cluster's distinct neighbors, then fill them in.
+        int[] offsets = new int[count + 1];
+        ForkJoinPool.commonPool().invoke(new Merging(fine, parent, childStart, children, offsets, null, null, 0, count));
+        for(int c = 0; c < count; c++) offsets[c + 1] += offsets[c];
+        int[] neighbors = new int[offsets[count]];
+        double[] weights = new double[offsets[count]];
+        ForkJoinPool.commonPool().invoke(new Merging(fine, parent, childStart, children, offsets, neighbors, weights, 0, count));
+        Adjacency edges = new Adjacency(IntBuffer.wrap(offsets), IntBuffer.wrap(neighbors), DoubleBuffer.wrap(weights));
+        return new Level(edges, childStart, children, leafCount, representative);
+    }
+
+    // Matches each unmatched cluster in keys, in curve order, with the next
+    // unmatched one if it is at most near away.
+    private static void pairAlongCurve(Level fine, long[] keys, int[] mate, double near) {
+        int a = -1;
+        for(int k = 0; k < keys.length; k++) {
+            int b = (int) keys[k];
+            if(mate[b] >= 0) continue;
+            if(a >= 0 && Math.hypot(fine.x[b] - fine.x[a], fine.y[b] - fine.y[a]) <= near) {
+                mate[a] = b;
+                mate[b] = a;
+                a = -1;
+            } else {
+                // The curve sometimes jumps; a cluster with no close successor waits.
+                a = b;
+            }
+        }
+    }
+
+    // Places each cluster of a level at the center of mass of its children
+    // and makes its radius reach its farthest node.  ancestor maps each node
+    // to its cluster on the level.  Measuring to the nodes themselves keeps
+    // radii from growing with every level, as bounds built from the
+    // children's radii would.
+    private void computePositions(Level coarse, Level fine, int[] ancestor) {
+        for(int c = 0; c < coarse.size; c++) {
+            double x = 0, y = 0;
+            for(int m = coarse.childStart[c]; m < coarse.childStart[c + 1]; m++) {
+                int u = coarse.children[m];
+                x += fine.x[u] * fine.leafCount[u];
+                y += fine.y[u] * fine.leafCount[u];
+            }
+            coarse.x[c] = x / coarse.leafCount[c];
+            coarse.y[c] = y / coarse.leafCount[c];
+            coarse.radius[c] = 0;
+        }
+        Level leaves = levels.get(0);
+        for(int i = 0; i < ancestor.length; i++) {
+            int c = ancestor[i];
+            if(c < 0) continue;
+            coarse.radius[c] = Math.max(coarse.radius[c], Math.hypot(leaves.x[i] - coarse.x[c], leaves.y[i] - coarse.y[c]));
+        }
+    }
+
+    // Interleaves the bits of two 16-bit values.
+    private static long interleave(int x, int y) {
+        long code = 0;
+        for(int bit = 0; bit < 16; bit++) {
+            code |= (long) ((x >> bit) & 1) << (2 * bit);
+            code |= (long) ((y >> bit) & 1) << (2 * bit + 1);
+        }
+        return code;
+    }
+
+    // One step of a matching round over a range of clusters.  Proposing
+    // points each unmatched cluster at its unmatched neighbor with the
+    // heaviest edge, ties going to the lowest index, among those at most near
+    // away; accepting matches the clusters that point at each other.  Each
+    // task writes only its own range.
+    private static class Matching extends RecursiveAction {
+        private final Level level;
+        private final int[] mate, proposal;
+        private final double near;
+        private final boolean propose;
+        private final int from, to;
+
+        Matching(Level level, int[] mate, int[] proposal, double near, boolean propose, int from, int to) {
+            this.level = level;
+            this.mate = mate;
+            this.proposal = proposal;
+            this.near = near;
+            this.propose = propose;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if(to - from > PARALLEL_THRESHOLD) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Matching(level, mate, proposal, near, propose, from, middle),
+                          new Matching(level, mate, proposal, near, propose, middle, to));
+                return;
+            }
+            Adjacency edges = level.edges;
+            for(int u = from; u < to; u++) {
+                if(!propose) {
+                    if(proposal[u] >= 0 && proposal[proposal[u]] == u) mate[u] = proposal[u];
+                    continue;
+                }
+                proposal[u] = -1;
+                if(level.leafCount[u] == 0 || mate[u] >= 0) continue;
+                double bestWeight = 0;
+                for(int e = edges.start(u); e < edges.end(u); e++) {
+                    int v = edges.neighbor(e);
+                    if(v == u || mate[v] >= 0) continue;
+                    if(Math.hypot(level.x[v] - level.x[u], level.y[v] - level.y[u]) > near) continue;
+                    double weight = edges.weight(e);
+                    if(proposal[u] < 0 || weight > bestWeight || (weight == bestWeight && v < proposal[u])) {
+                        proposal[u] = v;
+                        bestWeight = weight;
+                    }
+                }
+            }
+        }
+    }
+
+    // Collects the edges of a range of coarse clusters to other clusters,
+    // summing the weights of those that join the same two.  Without neighbors
+    // it only counts them into offsets[c + 1]; with them it writes them from
+    // offsets[c].
+    private static class Merging extends RecursiveAction {
+        private final Level fine;
+        private final int[] parent, childStart, children, offsets, neighbors;
+        private final double[] weights;
+        private final int from, to;
+
+        Merging(Level fine, int[] parent, int[] childStart, int[] children, int[] offsets,
+                int[] neighbors, double[] weights, int from, int to) {
+            this.fine = fine;
+            this.parent = parent;
+            this.childStart = childStart;
+            this.children = children;
+            this.offsets = offsets;
+            this.neighbors = neighbors;
+            this.weights = weights;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if(to - from > PARALLEL_THRESHOLD) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Merging(fine, parent, childStart, children, offsets, neighbors, weights, from, middle),
+                          new Merging(fine, parent, childStart, children, offsets, neighbors, weights, middle, to));
+                return;
+            }
+            Adjacency edges = fine.edges;
+            // Sort each cluster's edges by the cluster at their other end.
+            long[] keys = new long[64];
+            for(int c = from; c < to; c++) {
+                int found = 0;
+                for(int m = childStart[c]; m < childStart[c + 1]; m++) {
+                    int u = children[m];
+                    for(int e = edges.start(u); e < edges.end(u); e++) {
+                        int d = parent[edges.neighbor(e)];
+                        if(d == c) continue;
+                        if(found == keys.length) keys = Arrays.copyOf(keys, 2 * found);
+                        keys[found++] = (long) d << 32 | e;
+                    }
+                }
+                Arrays.sort(keys, 0, found);
+                int distinct = 0;
+                int at = neighbors == null ? 0 : offsets[c] - 1;
+                for(int k = 0; k < found; k++) {
+                    int d = (int) (keys[k] >>> 32);
+                    if(k == 0 || d != (int) (keys[k - 1] >>> 32)) {
+                        distinct++;
+                        if(neighbors != null) neighbors[++at] = d;
+                    }
+                    if(neighbors != null) weights[at] += edges.weight((int) keys[k]);
+                }
+                if(neighbors == null) offsets[c + 1] = distinct;
+            }
+        }
+    }
+}
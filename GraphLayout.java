@@ -0,0 +1,510 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Force-directed layout computed in process, so a graph can be positioned
+// without an external Graphviz run, or an existing layout refined.  Every
+// pair of nodes repels with force k^2 / d and every edge pulls its two nodes
+// together with force d^2 / k, where k is the ideal edge length
+// (Fruchterman-Reingold); a pull towards the center of mass keeps separate
+// components from drifting apart.  Nodes move along their force by at most
+// a step that grows while the total force keeps falling and shrinks when it
+// does not, and the layout is done once nodes move less than TOLERANCE * k
+// on average.
+//
+// Repulsion uses a Barnes-Hut quadtree: a cell narrower than THETA times its
+// distance from a node acts on it as one body at the cell's center of mass,
+// so an iteration costs O(n log n) instead of O(n^2).  The tree is built on
+// one thread; forces are computed in parallel over ranges of nodes with
+// fork/join, each task writing only the moves of its own nodes.
+//
+// A layout from scratch first coarsens the graph by repeatedly merging
+// matched pairs of neighbors, lays out the coarsest graph from random
+// positions and then works back to the full graph, each level starting from
+// the positions of the merged nodes.  Single-level layouts from random
+// positions fold up large meshes; this does not, and it converges in far
+// fewer full-size iterations.  Refining an existing layout uses only the
+// full graph.
+//
+// To lay out a graph without a display and write the result as .dot:
+//
+//     java -cp GraphApplet.jar GraphLayout graph list output [iterations] [--fresh]
+public class GraphLayout {
+    private static final int PARALLEL_THRESHOLD = 1 << 11;
+    private static final double THETA = 1.0;
+    private static final double GRAVITY = 1.0;
+    // The step grows by 1 / STEP_RATIO after PROGRESS_STEPS iterations that
+    // lowered the total force in a row and shrinks by STEP_RATIO after any other.
+    private static final double STEP_RATIO = 0.9;
+    private static final int PROGRESS_STEPS = 5;
+    // A level is done once nodes move less than this fraction of k on average.
+    private static final double TOLERANCE = 0.01;
+    private static final int MAX_LEVEL_ITERATIONS = 1000;
+    // Coarsening stops at this many nodes, or when a round merges too few.
+    private static final int COARSEST_SIZE = 64;
+    private static final double MIN_COARSENING = 0.8;
+    private static final double DEFAULT_EDGE_LENGTH = 100;
+    // Below this depth cells are not split, so coincident nodes share a leaf.
+    private static final int MAX_DEPTH = 40;
+    private static final Metrics.Histogram STEP_TIME = Metrics.timer("layout.step");
+
+    private final int nodeCount;
+    private final ArrayList<Level> levels = new ArrayList<Level>();
+    private final Random random;
+    private int level;
+    // The node of the current level that each node of the graph belongs to.
+    private int[] nodeAtLevel;
+
+    // Positions and moves of the current level's nodes.
+    private double[] x, y;
+    private double[] moveX, moveY, strength;
+    private double k;
+    private double step;
+    private double energy = Double.MAX_VALUE;
+    private int progress;
+    private double centerX, centerY;
+    private double averageMove = Double.MAX_VALUE;
+    private int iteration, levelIteration;
+
+    // Quadtree cells.  The four children of a split cell are stored together,
+    // starting at firstChild; a leaf has firstChild -1 and holds body, or -1
+    // if empty, or -2 if it holds several nodes at the same position.
+    private int cellCount;
+    private int[] firstChild = new int[0];
+    private int[] body = new int[0];
+    private double[] cellX = new double[0], cellY = new double[0], cellHalf = new double[0];
+    private double[] mass = new double[0], massX = new double[0], massY = new double[0];
+
+    // One graph in the coarsening hierarchy, with its edges packed like
+    // Adjacency's.  parent maps each node to the node of the next coarser
+    // level it was merged into.
+    private static class Level {
+        final int size;
+        final int[] offsets, neighbors;
+        final double k;
+        int[] parent;
+
+        Level(int[] offsets, int[] neighbors, double k) {
+            this.size = offsets.length - 1;
+            this.offsets = offsets;
+            this.neighbors = neighbors;
+            this.k = k;
+        }
+    }
+
+    // Constructor.  Starts from the graph's current positions, unless fresh is
+    // set or all nodes are at one point (as for a .dot file without pos
+    // attributes), in which case the layout starts from scratch.
+    public GraphLayout(Graph graph, boolean fresh) {
+        Adjacency adjacency = graph.getAdjacency();
+        nodeCount = graph.getNodeCount();
+        random = new Random(nodeCount);
+        int[] offsets = new int[nodeCount + 1];
+        int[] neighbors = new int[adjacency.entries()];
+        for(int i = 0; i < nodeCount; i++) {
+            offsets[i + 1] = adjacency.end(i);
+            for(int e = adjacency.start(i); e < adjacency.end(i); e++) neighbors[e] = adjacency.neighbor(e);
+        }
+        double[] range = graph.getRange();
+        double area = (range[2] - range[0]) * (range[3] - range[1]);
+        nodeAtLevel = new int[nodeCount];
+        for(int i = 0; i < nodeCount; i++) nodeAtLevel[i] = i;
+
+        if(fresh || area <= 0) {
+            levels.add(new Level(offsets, neighbors, DEFAULT_EDGE_LENGTH));
+            Level coarse;
+            while(levels.get(levels.size() - 1).size > COARSEST_SIZE &&
+                  (coarse = coarsen(levels.get(levels.size() - 1))) != null) {
+                levels.add(coarse);
+            }
+            level = levels.size() - 1;
+            for(int i = 0; i < nodeCount; i++) {
+                for(int l = 0; l < level; l++) nodeAtLevel[i] = levels.get(l).parent[nodeAtLevel[i]];
+            }
+            startLevel();
+            double side = k * Math.sqrt(x.length);
+            for(int i = 0; i < x.length; i++) {
+                x[i] = random.nextDouble() * side;
+                y[i] = random.nextDouble() * side;
+            }
+            step = side / 10;
+        } else {
+            // Keep the scale of the existing layout and only nudge it.
+            levels.add(new Level(offsets, neighbors, Math.sqrt(area / nodeCount)));
+            startLevel();
+            for(int i = 0; i < nodeCount; i++) {
+                x[i] = graph.getX(i);
+                y[i] = graph.getY(i);
+            }
+        }
+    }
+
+    // Merges each node with at most one unmerged neighbor, preferring
+    // neighbors of low degree so hubs do not swallow their surroundings.
+    // Returns null if that would not shrink the graph enough to be worth it.
+    private Level coarsen(Level fine) {
+        int n = fine.size;
+        int[] order = new int[n];
+        for(int i = 0; i < n; i++) order[i] = i;
+        for(int i = n - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int t = order[i];
+            order[i] = order[j];
+            order[j] = t;
+        }
+        int[] parent = new int[n];
+        Arrays.fill(parent, -1);
+        int count = 0;
+        for(int u : order) {
+            if(parent[u] >= 0) continue;
+            int best = -1;
+            for(int e = fine.offsets[u]; e < fine.offsets[u + 1]; e++) {
+                int v = fine.neighbors[e];
+                if(v == u || parent[v] >= 0) continue;
+                if(best < 0 || degree(fine, v) < degree(fine, best)) best = v;
+            }
+            parent[u] = count;
+            if(best >= 0) parent[best] = count;
+            count++;
+        }
+        if(count > MIN_COARSENING * n) return null;
+        fine.parent = parent;
+
+        // List the members of each merged node, then union their neighbors.
+        int[] memberStart = new int[count + 1];
+        for(int i = 0; i < n; i++) memberStart[parent[i] + 1]++;
+        for(int c = 0; c < count; c++) memberStart[c + 1] += memberStart[c];
+        int[] members = new int[n];
+        int[] cursor = Arrays.copyOf(memberStart, count);
+        for(int i = 0; i < n; i++) members[cursor[parent[i]]++] = i;
+
+        int[] offsets = new int[count + 1];
+        int[] neighbors = new int[fine.neighbors.length];
+        int[] mark = new int[count];
+        Arrays.fill(mark, -1);
+        int size = 0;
+        for(int c = 0; c < count; c++) {
+            offsets[c] = size;
+            for(int m = memberStart[c]; m < memberStart[c + 1]; m++) {
+                int u = members[m];
+                for(int e = fine.offsets[u]; e < fine.offsets[u + 1]; e++) {
+                    int d = parent[fine.neighbors[e]];
+                    if(d == c || mark[d] == c) continue;
+                    mark[d] = c;
+                    neighbors[size++] = d;
+                }
+            }
+        }
+        offsets[count] = size;
+        // Keep the coarse layout the same size as the final one.
+        return new Level(offsets, Arrays.copyOf(neighbors, size), fine.k * Math.sqrt((double) n / count));
+    }
+
+    private static int degree(Level level, int node) {
+        return level.offsets[node + 1] - level.offsets[node];
+    }
+
+    // Allocates the arrays of the current level.
+    private void startLevel() {
+        Level current = levels.get(level);
+        x = new double[current.size];
+        y = new double[current.size];
+        moveX = new double[current.size];
+        moveY = new double[current.size];
+        strength = new double[current.size];
+        k = current.k;
+        step = k;
+        energy = Double.MAX_VALUE;
+        progress = 0;
+        levelIteration = 0;
+        averageMove = Double.MAX_VALUE;
+    }
+
+    // Moves on to the next finer level, placing each node near the node it
+    // was merged into.
+    private void refineLevel() {
+        int[] parent = levels.get(level - 1).parent;
+        double[] coarseX = x, coarseY = y;
+        double coarseK = k;
+        level--;
+        startLevel();
+        for(int i = 0; i < x.length; i++) {
+            x[i] = coarseX[parent[i]] + (random.nextDouble() - 0.5) * coarseK / 2;
+            y[i] = coarseY[parent[i]] + (random.nextDouble() - 0.5) * coarseK / 2;
+        }
+        for(int i = 0; i < nodeCount; i++) {
+            int node = i;
+            for(int l = 0; l < level; l++) node = levels.get(l).parent[node];
+            nodeAtLevel[i] = node;
+        }
+    }
+
+    // Runs one iteration.
+    public void step() {
+        if(isDone()) return;
+        long start = System.nanoTime();
+        buildTree();
+        centerX = massX[0] / Math.max(mass[0], 1);
+        centerY = massY[0] / Math.max(mass[0], 1);
+        ForkJoinPool.commonPool().invoke(new Forces(0, x.length));
+        double moved = 0, nextEnergy = 0;
+        for(int i = 0; i < x.length; i++) {
+            x[i] += moveX[i];
+            y[i] += moveY[i];
+            moved += Math.sqrt(moveX[i] * moveX[i] + moveY[i] * moveY[i]);
+            nextEnergy += strength[i] * strength[i];
+        }
+        averageMove = moved / Math.max(x.length, 1);
+        if(nextEnergy < energy) {
+            if(++progress >= PROGRESS_STEPS) {
+                progress = 0;
+                step /= STEP_RATIO;
+            }
+        } else {
+            progress = 0;
+            step *= STEP_RATIO;
+        }
+        energy = nextEnergy;
+        iteration++;
+        levelIteration++;
+        if(level > 0 && isLevelDone()) refineLevel();
+        STEP_TIME.recordSince(start);
+    }
+
+    private boolean isLevelDone() {
+        return averageMove < TOLERANCE * k || levelIteration >= MAX_LEVEL_ITERATIONS;
+    }
+
+    // Returns true once the full graph has settled.
+    public boolean isDone() {
+        return nodeCount < 2 || (level == 0 && isLevelDone());
+    }
+
+    public int getIteration() {
+        return iteration;
+    }
+
+    // Returns how many times the graph is still coarsened; 0 once the full
+    // graph is being laid out.
+    public int getLevel() {
+        return level;
+    }
+
+    // Returns the average distance nodes moved in the last iteration.
+    public double getAverageMove() {
+        return averageMove;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    // Copies the current positions, rounded, into xs and ys.  While the graph
+    // is coarsened, merged nodes share a position.
+    public void getPositions(int[] xs, int[] ys) {
+        for(int i = 0; i < nodeCount; i++) {
+            xs[i] = (int) Math.round(x[nodeAtLevel[i]]);
+            ys[i] = (int) Math.round(y[nodeAtLevel[i]]);
+        }
+    }
+
+    private void buildTree() {
+        double loX = Double.MAX_VALUE, loY = Double.MAX_VALUE, hiX = -Double.MAX_VALUE, hiY = -Double.MAX_VALUE;
+        for(int i = 0; i < x.length; i++) {
+            loX = Math.min(loX, x[i]);
+            loY = Math.min(loY, y[i]);
+            hiX = Math.max(hiX, x[i]);
+            hiY = Math.max(hiY, y[i]);
+        }
+        cellCount = 0;
+        ensureCells(1);
+        initCell(0, (loX + hiX) / 2, (loY + hiY) / 2, Math.max(hiX - loX, hiY - loY) / 2 + 1);
+        cellCount = 1;
+        for(int i = 0; i < x.length; i++) insert(i);
+    }
+
+    // Adds a node to the mass of every cell on its way down to a leaf,
+    // splitting the leaf if it already holds a node.
+    private void insert(int node) {
+        double px = x[node], py = y[node];
+        int c = 0;
+        for(int depth = 0; ; depth++) {
+            mass[c]++;
+            massX[c] += px;
+            massY[c] += py;
+            if(firstChild[c] >= 0) {
+                c = firstChild[c] + quadrant(c, px, py);
+                continue;
+            }
+            if(mass[c] == 1) {
+                body[c] = node;
+                return;
+            }
+            if(depth >= MAX_DEPTH) {
+                body[c] = -2;
+                return;
+            }
+            int other = body[c];
+            int first = split(c);
+            int q = first + quadrant(c, x[other], y[other]);
+            mass[q] = 1;
+            massX[q] = x[other];
+            massY[q] = y[other];
+            body[q] = other;
+            c = first + quadrant(c, px, py);
+        }
+    }
+
+    private int quadrant(int cell, double px, double py) {
+        return (px >= cellX[cell] ? 1 : 0) | (py >= cellY[cell] ? 2 : 0);
+    }
+
+    private int split(int cell) {
+        ensureCells(cellCount + 4);
+        int first = cellCount;
+        double half = cellHalf[cell] / 2;
+        for(int q = 0; q < 4; q++) {
+            initCell(first + q, cellX[cell] + ((q & 1) != 0 ? half : -half),
+                     cellY[cell] + ((q & 2) != 0 ? half : -half), half);
+        }
+        cellCount += 4;
+        firstChild[cell] = first;
+        body[cell] = -1;
+        return first;
+    }
+
+    private void initCell(int cell, double cx, double cy, double half) {
+        firstChild[cell] = -1;
+        body[cell] = -1;
+        cellX[cell] = cx;
+        cellY[cell] = cy;
+        cellHalf[cell] = half;
+        mass[cell] = 0;
+        massX[cell] = 0;
+        massY[cell] = 0;
+    }
+
+    private void ensureCells(int count) {
+        if(count <= firstChild.length) return;
+        int capacity = Math.max(count, Math.max(64, firstChild.length * 2));
+        firstChild = Arrays.copyOf(firstChild, capacity);
+        body = Arrays.copyOf(body, capacity);
+        cellX = Arrays.copyOf(cellX, capacity);
+        cellY = Arrays.copyOf(cellY, capacity);
+        cellHalf = Arrays.copyOf(cellHalf, capacity);
+        mass = Arrays.copyOf(mass, capacity);
+        massX = Arrays.copyOf(massX, capacity);
+        massY = Arrays.copyOf(massY, capacity);
+    }
+
+    // Computes the move of one node of the current level.
+    private void computeMove(int node, int[] stack) {
+        double px = x[node], py = y[node];
+        double fx = 0, fy = 0;
+        double k2 = k * k;
+
+        // Repulsion, walking the tree.
+        int top = 0;
+        stack[top++] = 0;
+        while(top > 0) {
+            int c = stack[--top];
+            if(mass[c] == 0 || body[c] == node) continue;
+            double cx = massX[c] / mass[c], cy = massY[c] / mass[c];
+            double dx = px - cx, dy = py - cy;
+            double d2 = dx * dx + dy * dy;
+            boolean outside = Math.abs(px - cellX[c]) > cellHalf[c] || Math.abs(py - cellY[c]) > cellHalf[c];
+            if(firstChild[c] >= 0 && !(outside && 4 * cellHalf[c] * cellHalf[c] < THETA * THETA * d2)) {
+                for(int q = 0; q < 4; q++) stack[top++] = firstChild[c] + q;
+                continue;
+            }
+            if(d2 < 1e-6 * k2) {
+                // Same position: push apart in a direction that depends on the node.
+                double angle = node * 2.399963;
+                fx += Math.cos(angle) * k;
+                fy += Math.sin(angle) * k;
+                continue;
+            }
+            double f = k2 * mass[c] / d2;
+            fx += dx * f;
+            fy += dy * f;
+        }
+
+        // Attraction along edges.
+        Level current = levels.get(level);
+        for(int e = current.offsets[node]; e < current.offsets[node + 1]; e++) {
+            int j = current.neighbors[e];
+            double dx = x[j] - px, dy = y[j] - py;
+            double d = Math.sqrt(dx * dx + dy * dy);
+            fx += dx * d / k;
+            fy += dy * d / k;
+        }
+
+        fx += (centerX - px) * GRAVITY;
+        fy += (centerY - py) * GRAVITY;
+
+        double length = Math.sqrt(fx * fx + fy * fy);
+        double scale = length > step ? step / length : 1;
+        strength[node] = length;
+        moveX[node] = fx * scale;
+        moveY[node] = fy * scale;
+    }
+
+    // Computes the moves of a range of nodes.
+    private class Forces extends RecursiveAction {
+        private final int from, to;
+
+        Forces(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if(to - from > PARALLEL_THRESHOLD) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Forces(from, middle), new Forces(middle, to));
+                return;
+            }
+            int[] stack = new int[3 * MAX_DEPTH + 8];
+            for(int i = from; i < to; i++) computeMove(i, stack);
+        }
+    }
+
+    // Main.
+    public static void main(String args[]) throws IOException {
+        ArrayList<String> files = new ArrayList<String>();
+        boolean fresh = false;
+        for(String arg : args) {
+            if(arg.equals("--fresh")) fresh = true;
+            else files.add(arg);
+        }
+        if(files.size() < 3 || files.size() > 4) {
+            System.out.println("usage: java -cp GraphApplet.jar GraphLayout graph list output [iterations] [--fresh]");
+            System.out.println("graph      - input file describing graph.");
+            System.out.println("list       - input file listing image filenames.");
+            System.out.println("output     - .dot file to write with the computed positions.");
+            System.out.println("iterations - maximum number of iterations, until settled by default.");
+            System.out.println("--fresh    - ignore the positions in graph.");
+            System.exit(1);
+        }
+        int maxIterations = files.size() == 4 ? Integer.parseInt(files.get(3)) : Integer.MAX_VALUE;
+        Graph graph = new Graph(files.get(0), files.get(1), "", false);
+        GraphLayout layout = new GraphLayout(graph, fresh);
+        long start = System.currentTimeMillis();
+        while(!layout.isDone() && layout.getIteration() < maxIterations) {
+            layout.step();
+            if(layout.getIteration() % 10 == 0) {
+                System.out.println("Iteration " + layout.getIteration() + ", level " + layout.getLevel() +
+                                   ", average move " + Math.round(layout.getAverageMove()) + ", " +
+                                   (System.currentTimeMillis() - start) / layout.getIteration() + " ms per iteration.");
+            }
+        }
+        int[] xs = new int[layout.getNodeCount()], ys = new int[layout.getNodeCount()];
+        layout.getPositions(xs, ys);
+        graph.setPositions(xs, ys);
+        File output = new File(files.get(2));
+        graph.writeDot(output);
+        System.out.println("Wrote " + output + " after " + layout.getIteration() + " iterations in " +
+                           (System.currentTimeMillis() - start) + " ms.");
+        System.exit(0);
+    }
+}
@@ -0,0 +1,337 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Connectivity queries over an Adjacency: connected components and shortest
+// paths between two nodes.
+//
+// Components are labeled once, in parallel, with a lock-free union-find.
+// Paths are found with a bidirectional search, either by hop count (BFS) or
+// by cost (Dijkstra), where an edge costs 1 / weight so that paths follow
+// strong matches.  A query touches only primitive arrays that are allocated
+// once and reset with a generation stamp, so nodes in different components
+// are answered at once and other queries cost about the part of the graph
+// the two searches explore.  Queries are not thread safe.
+public class GraphQuery {
+    private static final int PARALLEL_THRESHOLD = 1 << 14;
+    // Weights at or below zero are treated as this, so every edge has a finite cost.
+    private static final double MIN_WEIGHT = 1e-6;
+    private static final Metrics.Histogram COMPONENTS_TIME = Metrics.timer("query.components");
+    private static final Metrics.Histogram PATH_TIME = Metrics.timer("query.path");
+
+    private final Adjacency adjacency;
+    private final int[] component;
+    private final int[] componentSizes;
+
+    // Search state for the forward (index 0) and backward (index 1) searches.
+    private final int[][] stamp = new int[2][];
+    private final int[][] parent = new int[2][];
+    private final double[][] distance = new double[2][];
+    private final int[][] frontier = new int[2][];
+    private final Heap[] heap = {new Heap(), new Heap()};
+    private int generation;
+    private int lastVisited;
+
+    // Labels the components of the adjacency.
+    public GraphQuery(Adjacency adjacency) {
+        this.adjacency = adjacency;
+        long start = System.nanoTime();
+        int n = adjacency.size();
+        AtomicIntegerArray roots = new AtomicIntegerArray(n);
+        for(int i = 0; i < n; i++) roots.set(i, i);
+        ForkJoinPool.commonPool().invoke(new Union(roots, 0, n));
+
+        // Every root is its component's lowest node, so numbering roots in
+        // node order numbers components by their lowest node.
+        component = new int[n];
+        int count = 0;
+        for(int i = 0; i < n; i++) {
+            int root = find(roots, i);
+            component[i] = root == i ? count++ : component[root];
+        }
+        componentSizes = new int[count];
+        for(int i = 0; i < n; i++) componentSizes[component[i]]++;
+
+        for(int side = 0; side < 2; side++) {
+            stamp[side] = new int[n];
+            parent[side] = new int[n];
+            distance[side] = new double[n];
+            frontier[side] = new int[n];
+        }
+        COMPONENTS_TIME.recordSince(start);
+    }
+
+    // Returns the number of connected components.
+    public int getComponentCount() {
+        return componentSizes.length;
+    }
+
+    // Returns the component of a node, numbered by lowest node from 0.
+    public int getComponent(int node) {
+        return component[node];
+    }
+
+    // Returns the number of nodes in a component.
+    public int getComponentSize(int component) {
+        return componentSizes[component];
+    }
+
+    // Returns the nodes on a path with the fewest edges from source to
+    // target, both included, or null if they are not connected.
+    public int[] shortestHopPath(int source, int target) {
+        long start = System.nanoTime();
+        int[] path = component[source] != component[target] ? null : bidirectionalBfs(source, target);
+        PATH_TIME.recordSince(start);
+        return path;
+    }
+
+    // Returns the nodes on a cheapest path from source to target, where an
+    // edge costs 1 / weight, or null if they are not connected.
+    public int[] cheapestPath(int source, int target) {
+        long start = System.nanoTime();
+        int[] path = component[source] != component[target] ? null : bidirectionalDijkstra(source, target);
+        PATH_TIME.recordSince(start);
+        return path;
+    }
+
+    // Returns the total cost of a path, taking the cheapest edge between each
+    // pair of consecutive nodes.
+    public double getCost(int[] path) {
+        double total = 0;
+        for(int p = 0; p + 1 < path.length; p++) {
+            double best = Double.POSITIVE_INFINITY;
+            for(int k = adjacency.start(path[p]); k < adjacency.end(path[p]); k++) {
+                if(adjacency.neighbor(k) == path[p + 1]) best = Math.min(best, cost(k));
+            }
+            total += best;
+        }
+        return total;
+    }
+
+    // Returns how many nodes the last path query reached.
+    public int getLastVisited() {
+        return lastVisited;
+    }
+
+    private double cost(int entry) {
+        return 1 / Math.max(adjacency.weight(entry), MIN_WEIGHT);
+    }
+
+    // Starts a new query.  Stamps from older queries no longer count as visited.
+    private void reset() {
+        if(++generation == Integer.MAX_VALUE) {
+            for(int side = 0; side < 2; side++) Arrays.fill(stamp[side], 0);
+            generation = 1;
+        }
+        lastVisited = 0;
+    }
+
+    private boolean visited(int side, int node) {
+        return stamp[side][node] == generation;
+    }
+
+    private void visit(int side, int node, int from, double d) {
+        if(stamp[side][node] != generation) {
+            stamp[side][node] = generation;
+            lastVisited++;
+        }
+        parent[side][node] = from;
+        distance[side][node] = d;
+    }
+
+    // Expands the smaller of the two frontiers one whole level at a time.
+    // The first node found by both searches lies on a shortest path: any
+    // shorter one would have met during an earlier level.
+    private int[] bidirectionalBfs(int source, int target) {
+        reset();
+        visit(0, source, -1, 0);
+        visit(1, target, -1, 0);
+        if(source == target) return new int[] {source};
+        int[] size = {1, 1};
+        frontier[0][0] = source;
+        frontier[1][0] = target;
+        while(size[0] > 0 && size[1] > 0) {
+            int side = size[0] <= size[1] ? 0 : 1;
+            int other = 1 - side;
+            int[] level = frontier[side];
+            int count = size[side];
+            // The next level is written behind the current one, then moved to the front.
+            int end = count;
+            for(int f = 0; f < count; f++) {
+                int u = level[f];
+                for(int k = adjacency.start(u); k < adjacency.end(u); k++) {
+                    int v = adjacency.neighbor(k);
+                    if(visited(side, v)) continue;
+                    visit(side, v, u, distance[side][u] + 1);
+                    if(visited(other, v)) return join(v);
+                    level[end++] = v;
+                }
+            }
+            System.arraycopy(level, count, level, 0, end - count);
+            size[side] = end - count;
+        }
+        return null;
+    }
+
+    // Alternates between the two searches, always settling the side with the
+    // lower tentative distance, and stops once the two smallest distances
+    // together cannot beat the best meeting found so far.
+    private int[] bidirectionalDijkstra(int source, int target) {
+        reset();
+        heap[0].clear();
+        heap[1].clear();
+        visit(0, source, -1, 0);
+        visit(1, target, -1, 0);
+        heap[0].push(source, 0);
+        heap[1].push(target, 0);
+        double best = source == target ? 0 : Double.POSITIVE_INFINITY;
+        int meet = source == target ? source : -1;
+        while(!heap[0].isEmpty() && !heap[1].isEmpty()) {
+            if(heap[0].peekKey() + heap[1].peekKey() >= best) break;
+            int side = heap[0].peekKey() <= heap[1].peekKey() ? 0 : 1;
+            int other = 1 - side;
+            double d = heap[side].peekKey();
+            int u = heap[side].pop();
+            // A node is only pushed again with a strictly lower distance, so
+            // exactly one of its entries is current.
+            if(d > distance[side][u]) continue;
+            for(int k = adjacency.start(u); k < adjacency.end(u); k++) {
+                int v = adjacency.neighbor(k);
+                double dv = d + cost(k);
+                if(!visited(side, v) || dv < distance[side][v]) {
+                    visit(side, v, u, dv);
+                    heap[side].push(v, dv);
+                }
+                if(visited(other, v) && distance[side][v] + distance[other][v] < best) {
+                    best = distance[side][v] + distance[other][v];
+                    meet = v;
+                }
+            }
+        }
+        return meet < 0 ? null : join(meet);
+    }
+
+    // Builds the path through a node reached by both searches.
+    private int[] join(int meet) {
+        int length = 0;
+        for(int v = meet; v >= 0; v = parent[0][v]) length++;
+        for(int v = parent[1][meet]; v >= 0; v = parent[1][v]) length++;
+        int[] path = new int[length];
+        int p = 0;
+        for(int v = meet; v >= 0; v = parent[0][v]) path[p++] = v;
+        for(int i = 0, j = p - 1; i < j; i++, j--) {
+            int t = path[i];
+            path[i] = path[j];
+            path[j] = t;
+        }
+        for(int v = parent[1][meet]; v >= 0; v = parent[1][v]) path[p++] = v;
+        return path;
+    }
+
+    // Returns the root of a node's set, halving the path on the way.
+    private static int find(AtomicIntegerArray roots, int node) {
+        while(true) {
+            int up = roots.get(node);
+            if(up == node) return node;
+            int grand = roots.get(up);
+            if(up != grand) roots.compareAndSet(node, up, grand);
+            node = grand;
+        }
+    }
+
+    // Joins the sets of every edge of a range of nodes.  Roots are only ever
+    // linked below lower-numbered roots, so a set's root is its lowest node.
+    private class Union extends RecursiveAction {
+        private final AtomicIntegerArray roots;
+        private final int from, to;
+
+        Union(AtomicIntegerArray roots, int from, int to) {
+            this.roots = roots;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if(to - from > PARALLEL_THRESHOLD) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Union(roots, from, middle), new Union(roots, middle, to));
+                return;
+            }
+            for(int i = from; i < to; i++) {
+                for(int k = adjacency.start(i); k < adjacency.end(i); k++) {
+                    int j = adjacency.neighbor(k);
+                    if(j > i) union(i, j);
+                }
+            }
+        }
+
+        private void union(int a, int b) {
+            while(true) {
+                int rootA = find(roots, a), rootB = find(roots, b);
+                if(rootA == rootB) return;
+                if(rootA < rootB) {
+                    int t = rootA;
+                    rootA = rootB;
+                    rootB = t;
+                }
+                if(roots.compareAndSet(rootA, rootA, rootB)) return;
+            }
+        }
+    }
+
+    // Binary min-heap of nodes keyed by distance.  A node may be pushed again
+    // with a smaller key; stale entries are skipped when popped.
+    private static class Heap {
+        private int[] nodes = new int[64];
+        private double[] keys = new double[64];
+        private int size;
+
+        void clear() {
+            size = 0;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        double peekKey() {
+            return keys[0];
+        }
+
+        void push(int node, double key) {
+            if(size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+                keys = Arrays.copyOf(keys, size * 2);
+            }
+            int i = size++;
+            while(i > 0) {
+                int up = (i - 1) >>> 1;
+                if(keys[up] <= key) break;
+                nodes[i] = nodes[up];
+                keys[i] = keys[up];
+                i = up;
+            }
+            nodes[i] = node;
+            keys[i] = key;
+        }
+
+        int pop() {
+            int top = nodes[0];
+            int node = nodes[--size];
+            double key = keys[size];
+            int i = 0;
+            while(true) {
+                int child = 2 * i + 1;
+                if(child >= size) break;
+                if(child + 1 < size && keys[child + 1] < keys[child]) child++;
+                if(keys[child] >= key) break;
+                nodes[i] = nodes[child];
+                keys[i] = keys[child];
+                i = child;
+            }
+            nodes[i] = node;
+            keys[i] = key;
+            return top;
+        }
+    }
+}
@@ -0,0 +1,367 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import com.sun.net.httpserver.*;
+
+// Headless HTTP server that loads a graph once and answers JSON queries about
+// it, so that other tools can share one loaded graph:
+//
+//     GET /info                                 node and edge counts, layout range
+//     GET /node?name=N  or  /node?id=I          one node
+//     GET /neighbors?node=I&limit=K             neighbors, heaviest edge first
+//     GET /nearest?x=X&y=Y                      node nearest to a layout point
+//     GET /viewport?x1=&y1=&x2=&y2=&minWeight=&limit=
+//                                               nodes inside a layout rectangle
+//                                               and their edges, at most limit of each
+//
+// /neighbors also takes name instead of node.  Errors are answered with a
+// status of 400 or 404, or 500 for a failure of the server itself, and
+// {"error": "..."}.
+//
+// Everything requests read is built before the server starts and never
+// changes: the adjacency, positions, a name index, a grid over the positions
+// and each node's edges sorted by weight.  Requests therefore share it
+// without locks.  They run on virtual threads where the JVM has them (Java 21
+// and later) and otherwise on a fixed pool of two threads per core.
+public class GraphServer {
+    public static final int DEFAULT_PORT = 8080;
+    private static final int DEFAULT_NEIGHBORS = 100;
+    private static final int DEFAULT_VIEWPORT_LIMIT = 10000;
+    private static final int MAX_LIMIT = 1000000;
+    private static final Metrics.Histogram REQUEST_TIME = Metrics.timer("server.request");
+    private static final Metrics.Counter ERRORS = Metrics.counter("server.errors");
+
+    private final int nodeCount;
+    private final Adjacency adjacency;
+    private final int[] xs, ys;
+    private final String[] names;
+    private final HashMap<String, Integer> nodeOfName;
+    private final NodeGrid grid;
+    // Adjacency entries of each node, heaviest first, in the node's own range.
+    private final int[] byWeight;
+    private final double[] range;
+    private HttpServer server;
+
+    public GraphServer(Graph graph) {
+        nodeCount = graph.getNodeCount();
+        adjacency = graph.getAdjacency();
+        range = graph.getRange();
+        xs = new int[nodeCount];
+        ys = new int[nodeCount];
+        names = new String[nodeCount];
+        nodeOfName = new HashMap<String, Integer>(nodeCount * 2);
+        for(int i = nodeCount - 1; i >= 0; i--) {
+            xs[i] = graph.getX(i);
+            ys[i] = graph.getY(i);
+            names[i] = graph.getName(i);
+            nodeOfName.put(names[i], i);
+        }
+        grid = new NodeGrid(IntBuffer.wrap(xs), IntBuffer.wrap(ys));
+
+        byWeight = new int[adjacency.entries()];
+        Integer[] entries = new Integer[0];
+        Comparator<Integer> heaviestFirst = new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                int c = Double.compare(adjacency.weight(b), adjacency.weight(a));
+                return c != 0 ? c : Integer.compare(a, b);
+            }
+        };
+        for(int i = 0; i < nodeCount; i++) {
+            int start = adjacency.start(i), degree = adjacency.degree(i);
+            if(entries.length < degree) entries = new Integer[Math.max(degree, 2 * entries.length)];
+            for(int k = 0; k < degree; k++) entries[k] = start + k;
+            Arrays.sort(entries, 0, degree, heaviestFirst);
+            for(int k = 0; k < degree; k++) byWeight[start + k] = entries[k];
+        }
+    }
+
+    // Starts serving on a port, 0 for any free one.
+    public synchronized void start(int port) throws IOException {
+        // Without TCP_NODELAY, the separate writes of headers and body meet the
+        // client's delayed ACK and each keep-alive response takes 40 ms.
+        if(System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/info", new Endpoint() {
+            String answer(Map<String, String> query) {
+                return info();
+            }
+        });
+        server.createContext("/node", new Endpoint() {
+            String answer(Map<String, String> query) {
+                return nodeJson(new StringBuilder(), node(query, "id")).toString();
+            }
+        });
+        server.createContext("/neighbors", new Endpoint() {
+            String answer(Map<String, String> query) {
+                return neighbors(node(query, "node"), limitParameter(query, "limit", DEFAULT_NEIGHBORS));
+            }
+        });
+        server.createContext("/nearest", new Endpoint() {
+            String answer(Map<String, String> query) {
+                return nearest(doubleParameter(query, "x", Double.NaN), doubleParameter(query, "y", Double.NaN));
+            }
+        });
+        server.createContext("/viewport", new Endpoint() {
+            String answer(Map<String, String> query) {
+                return viewport(doubleParameter(query, "x1", range[0]), doubleParameter(query, "y1", range[1]),
+                                doubleParameter(query, "x2", range[2]), doubleParameter(query, "y2", range[3]),
+                                doubleParameter(query, "minWeight", Double.NEGATIVE_INFINITY),
+                                limitParameter(query, "limit", DEFAULT_VIEWPORT_LIMIT));
+            }
+        });
+        server.setExecutor(requestExecutor());
+        server.start();
+    }
+
+    // Returns the port being served.
+    public synchronized int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    // Stops serving, waiting up to a second for requests in progress.
+    public synchronized void stop() {
+        server.stop(1);
+    }
+
+    // Runs each request on a new virtual thread if the JVM has them, found by
+    // reflection so that this still compiles and runs on Java 17.
+    private static ExecutorService requestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch(ReflectiveOperationException e) {
+            int threads = 2 * Runtime.getRuntime().availableProcessors();
+            return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "graph-server");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+    }
+
+    private String info() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"nodes\":").append(nodeCount);
+        json.append(",\"edges\":").append(adjacency.entries() / 2);
+        json.append(",\"range\":[").append(range[0]).append(',').append(range[1]).append(',');
+        json.append(range[2]).append(',').append(range[3]).append("]}");
+        return json.toString();
+    }
+
+    private String neighbors(int node, int limit) {
+        int start = adjacency.start(node), end = Math.min(adjacency.end(node), start + limit);
+        StringBuilder json = new StringBuilder();
+        json.append("{\"node\":").append(node).append(",\"degree\":").append(adjacency.degree(node));
+        json.append(",\"neighbors\":[");
+        for(int k = start; k < end; k++) {
+            if(k > start) json.append(',');
+            int entry = byWeight[k];
+            json.append("{\"id\":").append(adjacency.neighbor(entry)).append(",\"name\":");
+            string(json, names[adjacency.neighbor(entry)]);
+            json.append(",\"weight\":").append(adjacency.weight(entry)).append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+    private String nearest(double x, double y) {
+        if(Double.isNaN(x) || Double.isNaN(y)) throw new RequestException(400, "x and y are required");
+        int node = grid.nearest(x, y);
+        if(node < 0) throw new RequestException(404, "the graph is empty");
+        StringBuilder json = nodeJson(new StringBuilder(), node);
+        json.setLength(json.length() - 1);
+        double dx = xs[node] - x, dy = ys[node] - y;
+        return json.append(",\"distance\":").append(Math.sqrt(dx * dx + dy * dy)).append('}').toString();
+    }
+
+    // Lists the nodes inside the rectangle and the edges of at least
+    // minWeight that touch them, each edge once.
+    private String viewport(double x1, double y1, double x2, double y2, double minWeight, int limit) {
+        int[] nodes = new int[Math.min(limit, nodeCount)];
+        int total = grid.within(x1, y1, x2, y2, nodes);
+        int count = Math.min(total, nodes.length);
+        StringBuilder json = new StringBuilder();
+        json.append("{\"nodeCount\":").append(total).append(",\"nodes\":[");
+        for(int n = 0; n < count; n++) {
+            if(n > 0) json.append(',');
+            nodeJson(json, nodes[n]);
+        }
+        json.append("],\"edges\":[");
+        // The listed nodes, sorted to look up edge ends in.  When the list is
+        // truncated, not every node inside the rectangle is among them.
+        int[] listed = Arrays.copyOf(nodes, count);
+        Arrays.sort(listed);
+        int edges = 0;
+        boolean truncated = count < total;
+        listing:
+        for(int n = 0; n < count; n++) {
+            int i = nodes[n];
+            for(int k = adjacency.start(i); k < adjacency.end(i); k++) {
+                int j = adjacency.neighbor(k);
+                double weight = adjacency.weight(k);
+                if(weight < minWeight) continue;
+                // An edge between two listed nodes is listed from its lower node.
+                if(j < i && Arrays.binarySearch(listed, j) >= 0) continue;
+                if(edges == limit) {
+                    truncated = true;
+                    break listing;
+                }
+                if(edges++ > 0) json.append(',');
+                json.append('[').append(i).append(',').append(j).append(',').append(weight).append(']');
+            }
+        }
+        return json.append("],\"truncated\":").append(truncated).append('}').toString();
+    }
+
+    private StringBuilder nodeJson(StringBuilder json, int node) {
+        json.append("{\"id\":").append(node).append(",\"name\":");
+        string(json, names[node]);
+        json.append(",\"x\":").append(xs[node]).append(",\"y\":").append(ys[node]);
+        return json.append(",\"degree\":").append(adjacency.degree(node)).append('}');
+    }
+
+    // Returns the node named by the name parameter or numbered by idName.
+    private int node(Map<String, String> query, String idName) {
+        String name = query.get("name");
+        if(name != null) {
+            Integer node = nodeOfName.get(name);
+            if(node == null) throw new RequestException(404, "no node named " + name);
+            return node;
+        }
+        String id = query.get(idName);
+        if(id == null) throw new RequestException(400, idName + " or name is required");
+        int node;
+        try {
+            node = Integer.parseInt(id);
+        } catch(NumberFormatException e) {
+            throw new RequestException(400, idName + " is not an integer: " + id);
+        }
+        if(node < 0 || node >= nodeCount) throw new RequestException(404, "no node " + id);
+        return node;
+    }
+
+    private static int limitParameter(Map<String, String> query, String name, int missing) {
+        String value = query.get(name);
+        if(value == null) return missing;
+        try {
+            int i = Integer.parseInt(value);
+            if(i < 0 || i > MAX_LIMIT) throw new RequestException(400, name + " must be between 0 and " + MAX_LIMIT);
+            return i;
+        } catch(NumberFormatException e) {
+            throw new RequestException(400, name + " is not an integer: " + value);
+        }
+    }
+
+    private static double doubleParameter(Map<String, String> query, String name, double missing) {
+        String value = query.get(name);
+        if(value == null) return missing;
+        try {
+            return Double.parseDouble(value);
+        } catch(NumberFormatException e) {
+            throw new RequestException(400, name + " is not a number: " + value);
+        }
+    }
+
+    // Appends a string as a JSON string literal.
+    private static void string(StringBuilder json, String s) {
+        json.append('"');
+        for(int k = 0; k < s.length(); k++) {
+            char c = s.charAt(k);
+            if(c == '"' || c == '\\') json.append('\\').append(c);
+            else if(c < 0x20) json.append(String.format("\\u%04x", (int) c));
+            else json.append(c);
+        }
+        json.append('"');
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) throws UnsupportedEncodingException {
+        HashMap<String, String> query = new HashMap<String, String>();
+        if(rawQuery == null) return query;
+        for(String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            if(equals < 0) query.put(URLDecoder.decode(pair, "UTF-8"), "");
+            else query.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"), URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+        }
+        return query;
+    }
+
+    // A request that cannot be answered, with the HTTP status to send.
+    private static class RequestException extends RuntimeException {
+        final int status;
+
+        RequestException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    // Handler that answers GET requests with the JSON from answer().
+    private abstract class Endpoint implements HttpHandler {
+        abstract String answer(Map<String, String> query);
+
+        public void handle(HttpExchange exchange) throws IOException {
+            long start = System.nanoTime();
+            int status = 200;
+            String body;
+            try {
+                if(!exchange.getRequestMethod().equals("GET")) throw new RequestException(405, "only GET is supported");
+                if(!exchange.getRequestURI().getPath().equals(exchange.getHttpContext().getPath())) {
+                    throw new RequestException(404, "no such endpoint");
+                }
+                body = answer(parseQuery(exchange.getRequestURI().getRawQuery()));
+            } catch(RequestException e) {
+                status = e.status;
+                body = error(e.getMessage());
+            } catch(IllegalArgumentException e) {
+                // From URLDecoder, for malformed escapes.
+                status = 400;
+                body = error("malformed query");
+            } catch(RuntimeException e) {
+                // A bug, but the client still gets an answer and the error is counted.
+                System.out.println("Error answering " + exchange.getRequestURI() + ": " + e);
+                status = 500;
+                body = error("internal error: " + e);
+            }
+            byte[] bytes = body.getBytes("UTF-8");
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(status, bytes.length);
+            OutputStream out = exchange.getResponseBody();
+            try {
+                out.write(bytes);
+            } finally {
+                out.close();
+            }
+            REQUEST_TIME.recordSince(start);
+        }
+    }
+
+    // Counts an error and returns its JSON.
+    private static String error(String message) {
+        ERRORS.add(1);
+        StringBuilder json = new StringBuilder("{\"error\":");
+        string(json, message);
+        return json.append('}').toString();
+    }
+
+    // Loads a graph and serves it until killed.
+    public static void main(String args[]) throws IOException {
+        if(args.length < 2 || args.length > 3) {
+            System.out.println("usage: java -cp GraphApplet.jar GraphServer graph list [port]");
+            System.out.println("graph - input file describing graph.");
+            System.out.println("list  - input file listing image filenames.");
+            System.out.println("port  - port to listen on, " + DEFAULT_PORT + " by default.");
+            System.exit(1);
+        }
+        Metrics.startReporting();
+        int port = args.length == 3 ? Integer.parseInt(args[2]) : DEFAULT_PORT;
+        long start = System.currentTimeMillis();
+        GraphServer server = new GraphServer(new Graph(args[0], args[1], "", false));
+        server.start(port);
+        System.out.println("Serving " + args[0] + " on port " + server.getPort() + " after " +
+                           (System.currentTimeMillis() - start) + " ms.");
+    }
+}
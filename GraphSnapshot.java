@@ -0,0 +1,215 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+// Binary snapshot of a parsed graph, opened with memory-mapped I/O so that a
+// large graph loads in milliseconds and its data stays outside the Java heap.
+// Graph uses a snapshot automatically when graphFile + SUFFIX exists and is
+// newer than the .dot and list files.  To create one:
+//
+//     java -cp GraphApplet.jar GraphSnapshot graph list
+//
+// Layout, all little-endian, each section starting at the end of the previous:
+//
+//     header       magic, version, nodes, entries, min/max weight, name bytes
+//     weights      double[entries]
+//     xs, ys       int[nodes] each
+//     images       int[nodes]         image index of each node in the list file
+//     offsets      int[nodes + 1]     CSR offsets into neighbors/weights
+//     neighbors    int[entries]
+//     nameOffsets  int[nodes + 1]     offsets into the name blob
+//     shades       byte[entries]      precomputed edge shades
+//     names        byte[name bytes]   UTF-8 image names
+public class GraphSnapshot {
+    public static final String SUFFIX = ".snapshot";
+
+    private static final int MAGIC = 0x43494753;
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 48;
+
+    public final int nodeCount;
+    public final IntBuffer xs, ys;
+    public final IntBuffer images;
+    public final Adjacency adjacency;
+    public final StringTable names;
+    public final ByteBuffer edgeShades;
+    public final double minWeight, maxWeight;
+
+    private GraphSnapshot(int nodeCount, IntBuffer xs, IntBuffer ys, IntBuffer images, Adjacency adjacency,
+                          StringTable names, ByteBuffer edgeShades, double minWeight, double maxWeight) {
+        this.nodeCount = nodeCount;
+        this.xs = xs;
+        this.ys = ys;
+        this.images = images;
+        this.adjacency = adjacency;
+        this.names = names;
+        this.edgeShades = edgeShades;
+        this.minWeight = minWeight;
+        this.maxWeight = maxWeight;
+    }
+
+    // Returns true if the snapshot exists and is newer than all of its sources.
+    public static boolean isFresh(File snapshot, File... sources) {
+        if(!snapshot.isFile()) return false;
+        for(File source : sources) {
+            if(source.lastModified() >= snapshot.lastModified()) return false;
+        }
+        return true;
+    }
+
+    // Maps a snapshot file.  The mappings stay valid after the file is closed.
+    public static GraphSnapshot open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = map(channel, 0, HEADER_BYTES);
+            if(header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IOException(file + " is not a version " + VERSION + " graph snapshot");
+            }
+            int nodes = header.getInt(8);
+            int entries = header.getInt(12);
+            double minWeight = header.getDouble(16);
+            double maxWeight = header.getDouble(24);
+            int nameBytes = header.getInt(32);
+            // Check the counts before mapping, which rejects bad sizes with unchecked exceptions.
+            if(nodes < 0 || entries < 0 || nameBytes < 0 ||
+               HEADER_BYTES + 13L * entries + 20L * nodes + 8 + nameBytes != channel.size()) {
+                throw new IOException(file + " is truncated or corrupt");
+            }
+
+            long position = HEADER_BYTES;
+            DoubleBuffer weights = map(channel, position, 8L * entries).asDoubleBuffer();
+            position += 8L * entries;
+            IntBuffer xs = map(channel, position, 4L * nodes).asIntBuffer();
+            position += 4L * nodes;
+            IntBuffer ys = map(channel, position, 4L * nodes).asIntBuffer();
+            position += 4L * nodes;
+            IntBuffer images = map(channel, position, 4L * nodes).asIntBuffer();
+            position += 4L * nodes;
+            IntBuffer offsets = map(channel, position, 4L * (nodes + 1)).asIntBuffer();
+            position += 4L * (nodes + 1);
+            IntBuffer neighbors = map(channel, position, 4L * entries).asIntBuffer();
+            position += 4L * entries;
+            IntBuffer nameOffsets = map(channel, position, 4L * (nodes + 1)).asIntBuffer();
+            position += 4L * (nodes + 1);
+            ByteBuffer shades = map(channel, position, entries);
+            position += entries;
+            ByteBuffer nameBlob = map(channel, position, nameBytes);
+            position += nameBytes;
+            if(position != channel.size()) throw new IOException(file + " is truncated or corrupt");
+            // Check every index into the other sections once here, so that a
+            // corrupt file is rejected now rather than failing in Adjacency or
+            // StringTable with unchecked exceptions later.
+            boolean valid = offsets.get(0) == 0 && offsets.get(nodes) == entries &&
+                            nameOffsets.get(0) == 0 && nameOffsets.get(nodes) == nameBytes;
+            for(int i = 0; i < nodes && valid; i++) {
+                valid = offsets.get(i) <= offsets.get(i + 1) && nameOffsets.get(i) <= nameOffsets.get(i + 1) &&
+                        images.get(i) >= 0;
+            }
+            for(int k = 0; k < entries && valid; k++) {
+                int neighbor = neighbors.get(k);
+                valid = neighbor >= 0 && neighbor < nodes;
+            }
+            if(!valid) throw new IOException(file + " is truncated or corrupt");
+
+            return new GraphSnapshot(nodes, xs, ys, images, new Adjacency(offsets, neighbors, weights),
+                                     new StringTable(nameOffsets, nameBlob), shades, minWeight, maxWeight);
+        } finally {
+            raf.close();
+        }
+    }
+
+    // Writes a snapshot.  The data goes to a temporary file that is renamed
+    // into place, so a partly written snapshot is never picked up.
+    public static void write(File file, IntBuffer xs, IntBuffer ys, IntBuffer images, StringTable names,
+                             Adjacency adjacency, ByteBuffer edgeShades, double minWeight, double maxWeight)
+                             throws IOException {
+        int nodes = adjacency.size();
+        int entries = adjacency.entries();
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            Writer w = new Writer(out.getChannel());
+            w.putInt(MAGIC);
+            w.putInt(VERSION);
+            w.putInt(nodes);
+            w.putInt(entries);
+            w.putDouble(minWeight);
+            w.putDouble(maxWeight);
+            w.putInt(names.offset(nodes));
+            w.putInt(0);
+            w.putInt(0);
+            w.putInt(0);
+
+            for(int k = 0; k < entries; k++) w.putDouble(adjacency.weight(k));
+            for(int i = 0; i < nodes; i++) w.putInt(xs.get(i));
+            for(int i = 0; i < nodes; i++) w.putInt(ys.get(i));
+            for(int i = 0; i < nodes; i++) w.putInt(images.get(i));
+            for(int i = 0; i < nodes; i++) w.putInt(adjacency.start(i));
+            w.putInt(entries);
+            for(int k = 0; k < entries; k++) w.putInt(adjacency.neighbor(k));
+            for(int i = 0; i <= nodes; i++) w.putInt(names.offset(i));
+            for(int k = 0; k < entries; k++) w.put(edgeShades.get(k));
+            for(int k = 0; k < names.offset(nodes); k++) w.put(names.byteAt(k));
+            w.flush();
+        } finally {
+            out.close();
+        }
+        if(file.exists() && !file.delete()) throw new IOException("cannot replace " + file);
+        if(!temp.renameTo(file)) throw new IOException("cannot rename " + temp + " to " + file);
+    }
+
+    private static ByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+        if(size > Integer.MAX_VALUE) throw new IOException("snapshot section too large to map: " + size + " bytes");
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // Buffered little-endian writer over a file channel.
+    private static class Writer {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+
+        Writer(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void put(byte b) throws IOException {
+            if(buffer.remaining() < 1) flush();
+            buffer.put(b);
+        }
+
+        void putInt(int i) throws IOException {
+            if(buffer.remaining() < 4) flush();
+            buffer.putInt(i);
+        }
+
+        void putDouble(double d) throws IOException {
+            if(buffer.remaining() < 8) flush();
+            buffer.putDouble(d);
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while(buffer.hasRemaining()) channel.write(buffer);
+            buffer.clear();
+        }
+    }
+
+    // Converts a .dot graph and its list file into a snapshot next to the graph.
+    public static void main(String args[]) throws IOException {
+        if(args.length < 2 || args.length > 3) {
+            System.out.println("usage: java -cp GraphApplet.jar GraphSnapshot graph list [snapshot]");
+            System.out.println("graph    - input file describing graph.");
+            System.out.println("list     - input file listing image filenames.");
+            System.out.println("snapshot - output file, graph" + SUFFIX + " by default.");
+            System.exit(1);
+        }
+        File output = new File(args.length == 3 ? args[2] : args[0] + SUFFIX);
+        long start = System.currentTimeMillis();
+        Graph graph = new Graph(args[0], args[1], "", false, false);
+        graph.writeSnapshot(output);
+        System.out.println("Wrote " + output + " (" + output.length() + " bytes) in " +
+                           (System.currentTimeMillis() - start) + " ms.");
+        System.exit(0);
+    }
+}
@@ -1,6 +1,7 @@
 import java.io.*;
 import java.awt.*;
 import javax.swing.*;
+import javax.swing.event.*;
 import java.awt.event.*;
 import java.awt.image.*;
 import javax.imageio.*;
@@ -11,8 +12,20 @@ public class GraphViewer extends JPanel {
     private double endX, endY;
     private GraphPanel graphPanel;
     private ImagePanel imagePanel;
+    private long frameNanos;
+    private int pathSource = -1;
+    private boolean zoomed;
+    private Thread layoutThread;
+    private JSlider thresholdSlider;
+    private JLabel thresholdLabel;
+    private boolean hierarchyBuilding;
     
     private static final int LEFT_PANEL_WIDTH = 400;
+    private static final int DEFAULT_REFRESH_RATE = 60;
+    private static final int DEFAULT_SCREEN_HEIGHT = 1080;
+    private static final long LAYOUT_FRAME_NANOS = 100000000L;
+    private static final int THRESHOLD_STEPS = 1000;
+    private static final Metrics.Histogram FRAME_TIME = Metrics.timer("frame");
     
     // Constructor.
     public GraphViewer(Graph graph) {
@@ -32,18 +45,371 @@ public class GraphViewer extends JPanel {
         imagePanel = new ImagePanel();
         imagePanel.setPreferredSize(new Dimension(LEFT_PANEL_WIDTH, 0));
         add(imagePanel, BorderLayout.WEST);
+        graph.setImageSize(LEFT_PANEL_WIDTH, screenHeight());
+        add(createThresholdControl(), BorderLayout.SOUTH);
         
+        graph.getImageCache().addListener(new Runnable() {
+            public void run() {
+                imagePanel.repaint();
+            }
+        });
+        
+        frameNanos = 1000000000L / refreshRate();
         MouseController mouseController = new MouseController();
         graphPanel.addMouseListener(mouseController);
         graphPanel.addMouseMotionListener(mouseController);
+        addQueryBindings();
+        addLayoutBindings();
+        bind("Z", new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                graph.setSemanticZoom(!graph.isSemanticZoom());
+                System.out.println("Semantic zoom " + (graph.isSemanticZoom() ? "on." : "off."));
+                graphPanel.invalidateBaseLayer();
+                graphPanel.repaint();
+            }
+        });
+        graph.setSemanticZoom(true);
+        buildHierarchy();
+        
+        // Label components in the background so the first query is quick.
+        Thread labeler = new Thread(new Runnable() {
+            public void run() {
+                graph.getQuery();
+            }
+        }, "component-labeler");
+        labeler.setDaemon(true);
+        labeler.setPriority(Thread.MIN_PRIORITY);
+        labeler.start();
+    }
+    
+    // A slider that hides edges below a weight threshold, from all edges at
+    // the left end to the strongest at the right.
+    private JPanel createThresholdControl() {
+        thresholdSlider = new JSlider(0, THRESHOLD_STEPS, 0);
+        thresholdSlider.setFocusable(false);
+        thresholdLabel = new JLabel();
+        thresholdSlider.addChangeListener(new ChangeListener() {
+            public void stateChanged(ChangeEvent e) {
+                applyThreshold();
+            }
+        });
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.add(new JLabel(" Minimum edge weight "), BorderLayout.WEST);
+        panel.add(thresholdSlider, BorderLayout.CENTER);
+        panel.add(thresholdLabel, BorderLayout.EAST);
+        updateThresholdLabel();
+        return panel;
+    }
+    
+    // Maps the slider linearly onto the graph's current weight range.
+    private void applyThreshold() {
+        double min = graph.getMinWeight(), max = graph.getMaxWeight();
+        int value = thresholdSlider.getValue();
+        double threshold = value == 0 || max < min ? Double.NEGATIVE_INFINITY :
+                           min + (max - min) * value / THRESHOLD_STEPS;
+        if(threshold == graph.getEdgeIndex().getThreshold()) return;
+        graph.setEdgeThreshold(threshold);
+        updateThresholdLabel();
+        graphPanel.invalidateBaseLayer();
+        graphPanel.repaint();
+        imagePanel.repaint();
+    }
+    
+    private void updateThresholdLabel() {
+        EdgeIndex edges = graph.getEdgeIndex();
+        String weight = edges.getThreshold() == Double.NEGATIVE_INFINITY ? "any" :
+                        String.format("%.4g", edges.getThreshold());
+        thresholdLabel.setText(" " + weight + ": " + edges.getVisibleCount() + " of " +
+                               graph.getAdjacency().entries() / 2 + " edges ");
+    }
+    
+    // Keyboard commands for connectivity queries: S makes the selected image
+    // the path source, P and H highlight the cheapest and the fewest-hop path
+    // from it to the selected image, C toggles highlighting the selected
+    // image's component and Escape clears everything.
+    private void addQueryBindings() {
+        bind("S", new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                pathSource = graph.getSelectedNode();
+                if(pathSource >= 0) System.out.println("Path source: " + graph.getName(pathSource));
+            }
+        });
+        bind("P", new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                findPath(true);
+            }
+        });
+        bind("H", new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                findPath(false);
+            }
+        });
+        bind("C", new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                int node = graph.getSelectedNode();
+                int component = node < 0 ? -1 : graph.getQuery().getComponent(node);
+                if(component == graph.getHighlightedComponent()) component = -1;
+                graph.setHighlightedComponent(component);
+                if(component >= 0) {
+                    GraphQuery query = graph.getQuery();
+                    System.out.println("Component " + (component + 1) + " of " + query.getComponentCount() + ": " +
+                                       query.getComponentSize(component) + " images.");
+                }
+                graphPanel.invalidateBaseLayer();
+                graphPanel.repaint();
+            }
+        });
+        bind("ESCAPE", new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                pathSource = -1;
+                graph.setHighlightedPath(null);
+                if(graph.getHighlightedComponent() >= 0) {
+                    graph.setHighlightedComponent(-1);
+                    graphPanel.invalidateBaseLayer();
+                }
+                graphPanel.repaint();
+            }
+        });
     }
     
-    // Graph Panel.
+    // Keyboard commands for the built-in layout: L starts or pauses laying the
+    // graph out from its current positions, showing the layout as it
+    // converges, and W writes the current positions to a .dot file.
+    private void addLayoutBindings() {
+        bind("L", new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                if(layoutThread != null && layoutThread.isAlive()) {
+                    layoutThread.interrupt();
+                    layoutThread = null;
+                    System.out.println("Layout paused.");
+                    return;
+                }
+                final GraphLayout layout = new GraphLayout(graph, false);
+                layoutThread = new Thread(new Runnable() {
+                    public void run() {
+                        runLayout(layout);
+                    }
+                }, "graph-layout");
+                layoutThread.setDaemon(true);
+                layoutThread.start();
+            }
+        });
+        bind("W", new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                JFileChooser chooser = new JFileChooser();
+                if(chooser.showSaveDialog(GraphViewer.this) != JFileChooser.APPROVE_OPTION) return;
+                try {
+                    graph.writeDot(chooser.getSelectedFile());
+                    System.out.println("Wrote " + chooser.getSelectedFile());
+                } catch(IOException ex) {
+                    System.out.println("Error writing " + chooser.getSelectedFile() + ": " + ex.getMessage());
+                }
+            }
+        });
+    }
+    
+    // Iterates the layout on the calling thread until it is done or the thread
+    // is interrupted, handing the positions to the graph about ten times a
+    // second.  Each hand-over waits for the event thread, so a slow display
+    // slows the layout down rather than queueing up frames.
+    private void runLayout(GraphLayout layout) {
+        long lastFrame = System.nanoTime();
+        try {
+            while(!layout.isDone() && !Thread.currentThread().isInterrupted()) {
+                layout.step();
+                if(!layout.isDone() && System.nanoTime() - lastFrame < LAYOUT_FRAME_NANOS) continue;
+                final int[] x = new int[layout.getNodeCount()], y = new int[layout.getNodeCount()];
+                layout.getPositions(x, y);
+                final boolean[] applied = new boolean[1];
+                SwingUtilities.invokeAndWait(new Runnable() {
+                    public void run() {
+                        applied[0] = graph.setPositions(x, y);
+                        if(applied[0]) graphChanged();
+                    }
+                });
+                if(!applied[0]) {
+                    System.out.println("Layout stopped: the graph has changed.");
+                    return;
+                }
+                lastFrame = System.nanoTime();
+            }
+            if(layout.isDone()) System.out.println("Layout done after " + layout.getIteration() + " iterations.");
+        } catch(InterruptedException e) {
+            // Paused.
+        } catch(java.lang.reflect.InvocationTargetException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+    
+    // Clusters the graph on a background thread for semantic zoom, unless it
+    // has a hierarchy or one is being built.  If the graph's edges change
+    // during the build, it starts over.  Until the hierarchy is installed the
+    // graph is drawn node by node.
+    private void buildHierarchy() {
+        if(hierarchyBuilding || graph.getHierarchy() != null) return;
+        hierarchyBuilding = true;
+        Thread builder = new Thread(new Runnable() {
+            public void run() {
+                final GraphHierarchy hierarchy = new GraphHierarchy(graph);
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        hierarchyBuilding = false;
+                        if(!graph.setHierarchy(hierarchy)) {
+                            buildHierarchy();
+                            return;
+                        }
+                        System.out.println("Clustered into " + hierarchy.getLevelCount() + " levels, " +
+                                           hierarchy.getClusterCount(hierarchy.getLevelCount() - 1) + " clusters at the top.");
+                        if(graph.isSemanticZoom()) {
+                            graphPanel.invalidateBaseLayer();
+                            graphPanel.repaint();
+                        }
+                    }
+                });
+            }
+        }, "graph-hierarchy");
+        builder.setDaemon(true);
+        builder.setPriority(Thread.MIN_PRIORITY);
+        builder.start();
+    }
+    
+    // Redraws after the graph has grown or moved.  The view keeps fitting the
+    // whole graph until the user zooms in.  Must be called on the event thread.
+    public void graphChanged() {
+        if(!zoomed) fitRange();
+        buildHierarchy();
+        applyThreshold();
+        updateThresholdLabel();
+        graphPanel.invalidateBaseLayer();
+        graphPanel.repaint();
+        imagePanel.repaint();
+    }
+    
+    private void fitRange() {
+        double[] range = graph.getRange();
+        startX = range[0];
+        startY = range[1];
+        endX = range[2];
+        endY = range[3];
+        zoomed = false;
+    }
+    
+    private void bind(String key, Action action) {
+        getInputMap(WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke(key), key);
+        getActionMap().put(key, action);
+    }
+    
+    // Highlights the cheapest (by 1 / weight) or the fewest-hop path from the
+    // path source to the selected image.
+    private void findPath(boolean cheapest) {
+        int target = graph.getSelectedNode();
+        if(pathSource < 0 || target < 0) {
+            System.out.println("Press S over the source image, then " + (cheapest ? "P" : "H") + " over the target image.");
+            return;
+        }
+        GraphQuery query = graph.getQuery();
+        long start = System.nanoTime();
+        int[] path = cheapest ? query.cheapestPath(pathSource, target) : query.shortestHopPath(pathSource, target);
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        String from = graph.getName(pathSource), to = graph.getName(target);
+        if(path == null) {
+            System.out.println(from + " and " + to + " are not connected; their components have " +
+                               query.getComponentSize(query.getComponent(pathSource)) + " and " +
+                               query.getComponentSize(query.getComponent(target)) + " images.");
+        } else {
+            StringBuilder names = new StringBuilder();
+            for(int i = 0; i < path.length; i++) names.append(i == 0 ? "" : " -- ").append(graph.getName(path[i]));
+            System.out.println((cheapest ? "Cheapest" : "Fewest-hop") + " path from " + from + " to " + to + ": " +
+                               (path.length - 1) + " edges, cost " + query.getCost(path) + ", " +
+                               query.getLastVisited() + " nodes searched in " + elapsed + " ms.");
+            System.out.println(names);
+        }
+        graph.setHighlightedPath(path);
+        graphPanel.repaint();
+    }
+    
+    // Returns the usable height of the screen, the most the image panel can
+    // grow to, or DEFAULT_SCREEN_HEIGHT without a display.
+    private static int screenHeight() {
+        try {
+            return GraphicsEnvironment.getLocalGraphicsEnvironment().getMaximumWindowBounds().height;
+        } catch(HeadlessException e) {
+            return DEFAULT_SCREEN_HEIGHT;
+        }
+    }
+    
+    // Returns the refresh rate of the default screen, or DEFAULT_REFRESH_RATE
+    // if it is unknown.
+    private static int refreshRate() {
+        try {
+            int rate = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDisplayMode().getRefreshRate();
+            if(rate != DisplayMode.REFRESH_RATE_UNKNOWN) return rate;
+        } catch(HeadlessException e) {
+        }
+        return DEFAULT_REFRESH_RATE;
+    }
+    
+    // Graph Panel.  The edges and nodes are rendered once per view into an
+    // off-screen base layer; a repaint blits that layer and draws only the
+    // selection and drag box over it.
     private class GraphPanel extends JPanel {
+        private VolatileImage baseLayer;
+        private boolean baseLayerValid;
+        private double layerStartX, layerStartY, layerEndX, layerEndY;
+        
+        // Forces the base layer to be redrawn on the next repaint.
+        public void invalidateBaseLayer() {
+            baseLayerValid = false;
+        }
+        
         // Repaint.
         public void paintComponent(Graphics g) {
-            super.paintComponent(g);            
-            graph.draw(g, startX, startY, endX, endY, getWidth(), getHeight());
+            long start = System.nanoTime();
+            super.paintComponent(g);
+            if(getWidth() <= 0 || getHeight() <= 0) return;
+            paintBaseLayer(g);
+            graph.drawOverlay(g, startX, startY, endX, endY, getWidth(), getHeight());
+            FRAME_TIME.recordSince(start);
+        }
+        
+        // Draws the cached base layer, re-rendering it if the view or panel
+        // size changed or the accelerated surface was lost.
+        private void paintBaseLayer(Graphics g) {
+            if(startX != layerStartX || startY != layerStartY || endX != layerEndX || endY != layerEndY) {
+                baseLayerValid = false;
+            }
+            do {
+                if(baseLayer == null || baseLayer.getWidth() != getWidth() || baseLayer.getHeight() != getHeight()) {
+                    if(baseLayer != null) baseLayer.flush();
+                    baseLayer = createVolatileImage(getWidth(), getHeight());
+                    baseLayerValid = false;
+                    if(baseLayer == null) {
+                        graph.drawBase(g, startX, startY, endX, endY, getWidth(), getHeight());
+                        return;
+                    }
+                }
+                int status = baseLayer.validate(getGraphicsConfiguration());
+                if(status == VolatileImage.IMAGE_INCOMPATIBLE) {
+                    baseLayer.flush();
+                    baseLayer = null;
+                    continue;
+                }
+                if(status == VolatileImage.IMAGE_RESTORED) baseLayerValid = false;
+                
+                if(!baseLayerValid) {
+                    Graphics2D layer = baseLayer.createGraphics();
+                    layer.setColor(getBackground());
+                    layer.fillRect(0, 0, getWidth(), getHeight());
+                    graph.drawBase(layer, startX, startY, endX, endY, getWidth(), getHeight());
+                    layer.dispose();
+                    layerStartX = startX;
+                    layerStartY = startY;
+                    layerEndX = endX;
+                    layerEndY = endY;
+                    baseLayerValid = true;
+                }
+                g.drawImage(baseLayer, 0, 0, null);
+            } while(baseLayer == null || baseLayer.contentsLost());
         }
     }
     
@@ -75,27 +441,69 @@ public class GraphViewer extends JPanel {
                 FontMetrics fm = g.getFontMetrics();
                 int startX = (LEFT_PANEL_WIDTH - fm.stringWidth(basename)) / 2;
                 g.drawString(basename, startX, y + h + 15);
+            } else if(graph.isSelectedImageLoading()) {
+                // Placeholder until the image has been decoded.
+                g.setColor(Color.gray);
+                String message = "Loading " + basename + "...";
+                FontMetrics fm = g.getFontMetrics();
+                g.drawString(message, (getWidth() - fm.stringWidth(message)) / 2, getHeight() / 2);
             }
         }
     }
     
-    // Mouse Controller.
+    // Mouse Controller.  Motion events can arrive much faster than the screen
+    // refreshes, so hovering keeps only the latest position and handles it at
+    // most once per frame.  Only the areas whose contents change are repainted.
     private class MouseController implements MouseListener, MouseMotionListener {
         private boolean dragging;
         private int downX;
         private int downY;
+        private int hoverX, hoverY;
+        private long lastHover;
+        private Timer hoverTimer;
+        
+        public MouseController() {
+            hoverTimer = new Timer(0, new ActionListener() {
+                public void actionPerformed(ActionEvent e) {
+                    hover();
+                }
+            });
+            hoverTimer.setRepeats(false);
+        }
         
         public void mouseMoved(MouseEvent e) {
-            graph.setSelected(e.getX(), e.getY(), startX, startY, endX, endY, graphPanel.getWidth(), graphPanel.getHeight());
-            graphPanel.repaint();
+            hoverX = e.getX();
+            hoverY = e.getY();
+            if(hoverTimer.isRunning()) return;
+            long wait = lastHover + frameNanos - System.nanoTime();
+            if(wait <= 0) {
+                hover();
+            } else {
+                hoverTimer.setInitialDelay((int) Math.max(1, wait / 1000000));
+                hoverTimer.start();
+            }
+        }
+        
+        // Selects the node under the latest hover position.  If the selection
+        // changed, repaints the old and new highlights and the image.
+        private void hover() {
+            lastHover = System.nanoTime();
+            int width = graphPanel.getWidth();
+            int height = graphPanel.getHeight();
+            Rectangle before = graph.getSelectionBounds(startX, startY, endX, endY, width, height);
+            if(!graph.setSelected(hoverX, hoverY, startX, startY, endX, endY, width, height)) return;
+            Rectangle after = graph.getSelectionBounds(startX, startY, endX, endY, width, height);
+            if(before != null) graphPanel.repaint(before);
+            if(after != null) graphPanel.repaint(after);
             imagePanel.repaint();
         }
         
         public void mouseDragged(MouseEvent e) {
             if(e.getButton() == MouseEvent.BUTTON1) {
-                System.out.println("drag");
+                Rectangle before = graph.getDragBoxBounds();
                 graph.updateDragBox(downX, downY, e.getX(), e.getY());
-                graphPanel.repaint();
+                Rectangle after = graph.getDragBoxBounds();
+                graphPanel.repaint(before == null ? after : before.union(after));
             }
         }
         
@@ -118,7 +526,9 @@ public class GraphViewer extends JPanel {
                 endX -= ((graphPanel.getWidth() - endMouseX) * rangeX) / graphPanel.getWidth();
                 startY += (startMouseY * rangeY) / graphPanel.getHeight();
                 endY -= ((graphPanel.getHeight() - endMouseY) * rangeY) / graphPanel.getHeight();
+                zoomed = true;
                 graph.updateDragBox(-1, -1, -1, -1);
+                graphPanel.invalidateBaseLayer();
                 graphPanel.repaint();
                 imagePanel.repaint();
             }
@@ -126,11 +536,8 @@ public class GraphViewer extends JPanel {
         
         public void mouseClicked(MouseEvent e) {
             if(e.getButton() == MouseEvent.BUTTON3) {
-                double[] range = graph.getRange();
-                startX = range[0];
-                startY = range[1];
-                endX = range[2];
-                endY = range[3];
+                fitRange();
+                graphPanel.invalidateBaseLayer();
                 graphPanel.repaint();
                 imagePanel.repaint();
             }
@@ -145,22 +552,47 @@ public class GraphViewer extends JPanel {
     
     // Main.
     public static void main(String args[]) {
-        if(args.length != 3) {
-            System.out.println("usage: java -jar GraphViewer.jar graph list images_dir");
+        boolean watch = args.length == 4 && args[3].equals("--watch");
+        if(args.length != 3 && !watch) {
+            System.out.println("usage: java -jar GraphViewer.jar graph list images_dir [--watch]");
             System.out.println("graph - input file describing graph.");
             System.out.println("list  - input file listing image filenames.");
             System.out.println("images_dir - directory with images.");
+            System.out.println("--watch - keep reading lines appended to graph and list.");
             System.exit(1);
         }
         
-        Graph graph = new Graph(args[0], args[1], args[2] + System.getProperty("file.separator"), false);
+        Metrics.startReporting();
+        String imagesDirectory = args[2] + System.getProperty("file.separator");
+        Graph graph;
+        GraphWatcher watcher = null;
+        if(watch) {
+            graph = new Graph(imagesDirectory, false);
+            watcher = new GraphWatcher(graph, new File(args[0]), new File(args[1]));
+            try {
+                watcher.update();
+            } catch(IOException e) {
+                System.out.println("Error reading input.");
+                e.printStackTrace();
+            }
+        } else {
+            graph = new Graph(args[0], args[1], imagesDirectory, false);
+        }
         
-        JPanel graphViewer = new GraphViewer(graph);
+        final GraphViewer graphViewer = new GraphViewer(graph);
         JFrame f = new JFrame();
         f.add(graphViewer, BorderLayout.CENTER);
         f.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
         f.pack();
         f.setVisible(true);
         
+        if(watcher != null) {
+            watcher.addListener(new Runnable() {
+                public void run() {
+                    graphViewer.graphChanged();
+                }
+            });
+            watcher.start();
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,145 @@
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.swing.*;
+
+// Follows a .dot file and its list file while another program is still
+// writing them, like "tail -f".  Every poll reads only the complete lines
+// appended since the last one, parses them and merges the new nodes and
+// edges into a graph created with Graph(imagesDirectory, isURL).  The merge
+// is prepared on the watcher thread and installed on the Swing event thread,
+// so drawing never sees a half-updated graph and a poll costs about the size
+// of what was appended, not the size of the graph.
+public class GraphWatcher {
+    private static final long POLL_MILLIS = 1000;
+    // Caps how much of a file one poll reads, so a huge backlog is merged in steps.
+    private static final int MAX_BATCH_BYTES = 64 << 20;
+    private static final int MAX_REPORTED_PROBLEMS = 20;
+
+    private final Graph graph;
+    private final File graphFile, listFile;
+    private final ArrayList<String> listLines = new ArrayList<String>();
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<Runnable>();
+    private long graphOffset, listOffset;
+    private long graphLines;
+    private Thread thread;
+
+    // Constructor.  The graph must have been created empty.
+    public GraphWatcher(Graph graph, File graphFile, File listFile) {
+        this.graph = graph;
+        this.graphFile = graphFile;
+        this.listFile = listFile;
+    }
+
+    // Registers code to run on the event thread after each change to the graph.
+    public void addListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    // Reads and merges whatever has been appended so far, on the calling
+    // thread.  Use before the graph is shown; afterwards use start().
+    // Returns false if nothing was appended.
+    public boolean update() throws IOException {
+        Graph.Update update = poll();
+        if(update == null) return false;
+        graph.applyUpdate(update);
+        return true;
+    }
+
+    // Starts polling on a background thread.
+    public synchronized void start() {
+        if(thread != null) return;
+        thread = new Thread(new Runnable() {
+            public void run() {
+                watch();
+            }
+        }, "graph-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Stops polling.
+    public synchronized void stop() {
+        if(thread != null) thread.interrupt();
+        thread = null;
+    }
+
+    private void watch() {
+        try {
+            while(!Thread.currentThread().isInterrupted()) {
+                final Graph.Update update = poll();
+                if(update != null) {
+                    SwingUtilities.invokeAndWait(new Runnable() {
+                        public void run() {
+                            graph.applyUpdate(update);
+                            for(Runnable listener : listeners) listener.run();
+                        }
+                    });
+                    // More may be waiting beyond MAX_BATCH_BYTES.
+                    continue;
+                }
+                Thread.sleep(POLL_MILLIS);
+            }
+        } catch(InterruptedException e) {
+            // Stopped.
+        } catch(Exception e) {
+            System.out.println("Stopped watching " + graphFile + ": " + e.getMessage());
+        }
+    }
+
+    // Reads the new lines of both files and prepares the update they make,
+    // or returns null if neither file has grown.
+    private Graph.Update poll() throws IOException {
+        byte[] listBytes = readNewLines(listFile, listOffset);
+        byte[] graphBytes = readNewLines(graphFile, graphOffset);
+        if(listBytes.length == 0 && graphBytes.length == 0) return null;
+        listOffset += listBytes.length;
+        graphOffset += graphBytes.length;
+
+        // List lines are read the way BufferedReader.readLine() would.
+        String text = new String(listBytes, "UTF-8");
+        int start = 0;
+        while(start < text.length()) {
+            int end = text.indexOf('\n', start);
+            int lineEnd = end > start && text.charAt(end - 1) == '\r' ? end - 1 : end;
+            listLines.add(text.substring(start, lineEnd));
+            start = end + 1;
+        }
+
+        DotParser.Result parsed = DotParser.parse(ByteBuffer.wrap(graphBytes));
+        Graph.Update update = graph.prepareUpdate(parsed, listLines);
+        ArrayList<String> problems = new ArrayList<String>(parsed.problems);
+        problems.addAll(update.getProblems());
+        for(int i = 0; i < problems.size() && i < MAX_REPORTED_PROBLEMS; i++) {
+            System.out.println("Malformed input after line " + graphLines + ", " + problems.get(i));
+        }
+        if(problems.size() > MAX_REPORTED_PROBLEMS) {
+            System.out.println("... and " + (problems.size() - MAX_REPORTED_PROBLEMS) + " more problems.");
+        }
+        graphLines += parsed.lineCount;
+        System.out.println("Added " + update.getNodesAdded() + " nodes and " + update.getEdgesAdded() + " edges" +
+                           (update.getWaiting() > 0 ? ", " + update.getWaiting() + " waiting for their nodes." : "."));
+        return update;
+    }
+
+    // Returns the bytes from offset up to and including the file's last
+    // newline, or none if no complete line has been added or the file does
+    // not exist yet.  A line still being written is picked up by a later poll.
+    private static byte[] readNewLines(File file, long offset) throws IOException {
+        if(!file.exists()) return new byte[0];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long length = raf.length();
+            if(length < offset) throw new IOException(file + " got shorter");
+            byte[] bytes = new byte[(int) Math.min(length - offset, MAX_BATCH_BYTES)];
+            raf.seek(offset);
+            raf.readFully(bytes);
+            int end = bytes.length;
+            while(end > 0 && bytes[end - 1] != '\n') end--;
+            return end == bytes.length ? bytes : Arrays.copyOf(bytes, end);
+        } finally {
+            raf.close();
+        }
+    }
+}
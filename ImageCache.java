@@ -0,0 +1,282 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.awt.image.*;
+import javax.swing.*;
+
+// Memory-bounded LRU cache of decoded images, keyed by image name.  Images
+// are decoded on background threads; get() never blocks and returns null
+// until the image is ready, at which point the registered listeners are run
+// on the Swing event thread so the viewer can repaint.
+//
+// prefetch() decodes images that are likely to be wanted next on a single
+// low-priority thread.  Each call replaces the previous prefetch list, and
+// prefetched images that have not been asked for yet may only take up a
+// fraction of the cache.
+public class ImageCache {
+    // Reads and decodes one image.  Called on a background thread.
+    public interface Loader {
+        BufferedImage load(String name) throws IOException;
+    }
+
+    private final Loader loader;
+    private final long maxBytes;
+    private final ExecutorService executor;
+    private final ExecutorService prefetchExecutor;
+    private final LinkedHashMap<String, BufferedImage> images;
+    private final HashMap<String, Future<?>> pending;
+    private final HashSet<String> pendingPrefetches;
+    private final HashSet<String> decoding;
+    private final HashSet<String> prefetched;
+    // Images that failed to load and System.nanoTime() when they did.
+    private final HashMap<String, Long> failed;
+    private final List<Runnable> listeners;
+    private long bytes, prefetchedBytes;
+    private long hits, misses, evictions;
+    private long prefetchesIssued, prefetchesCancelled, prefetchHits, prefetchesWasted;
+
+    // Share of the cache that unused prefetched images may occupy.
+    private static final int PREFETCH_BUDGET_DIVISOR = 4;
+    // Time before an image that failed to load is tried again.
+    private static final long RETRY_NANOS = 10000000000L;
+
+    // Creates a cache holding at most maxBytes of decoded pixels.
+    public ImageCache(Loader loader, long maxBytes, int threads) {
+        this.loader = loader;
+        this.maxBytes = maxBytes;
+        images = new LinkedHashMap<String, BufferedImage>(16, 0.75f, true);
+        pending = new HashMap<String, Future<?>>();
+        pendingPrefetches = new HashSet<String>();
+        decoding = new HashSet<String>();
+        prefetched = new HashSet<String>();
+        failed = new HashMap<String, Long>();
+        listeners = new CopyOnWriteArrayList<Runnable>();
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "image-loader");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        prefetchExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "image-prefetcher");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+    }
+
+    // Registers a callback run on the event thread whenever an image finishes loading.
+    public void addListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    // Returns the decoded image if it is cached.  Otherwise starts loading it,
+    // unless a load is already in flight or failed less than RETRY_NANOS ago,
+    // and returns null.
+    public synchronized BufferedImage get(String name) {
+        BufferedImage image = images.get(name);
+        if(image != null) {
+            hits++;
+            if(prefetched.remove(name)) {
+                prefetchHits++;
+                prefetchedBytes -= imageBytes(image);
+            }
+            return image;
+        }
+        if(pendingPrefetches.contains(name) && !decoding.contains(name)) {
+            // Wanted now: move a queued prefetch over to the regular loaders.
+            pending.get(name).cancel(false);
+            pendingPrefetches.remove(name);
+            pending.remove(name);
+            prefetchesCancelled++;
+        }
+        if(pending.containsKey(name) || hasFailed(name)) return null;
+        misses++;
+        pending.put(name, executor.submit(new LoadTask(name, false)));
+        return null;
+    }
+
+    // Replaces the prefetch list.  Queued prefetches of images not in the new
+    // list are cancelled; new ones are queued in order while the prefetched
+    // images stay within budget.
+    public synchronized void prefetch(List<String> names) {
+        Iterator<String> it = pendingPrefetches.iterator();
+        while(it.hasNext()) {
+            String name = it.next();
+            if(!names.contains(name) && !decoding.contains(name)) {
+                pending.remove(name).cancel(false);
+                it.remove();
+                prefetchesCancelled++;
+            }
+        }
+        for(String name : names) {
+            if(prefetchedBytes >= maxBytes / PREFETCH_BUDGET_DIVISOR) break;
+            if(images.containsKey(name) || pending.containsKey(name) || hasFailed(name)) continue;
+            pending.put(name, prefetchExecutor.submit(new LoadTask(name, true)));
+            pendingPrefetches.add(name);
+            prefetchesIssued++;
+        }
+    }
+
+    // Lets images that failed to load be tried again right away, such as after
+    // the list or the image files have changed.
+    public synchronized void retryFailed() {
+        failed.clear();
+    }
+
+    // Returns true while the named image is being loaded.
+    public synchronized boolean isLoading(String name) {
+        return pending.containsKey(name);
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized int getCount() {
+        return images.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getPrefetchesIssued() {
+        return prefetchesIssued;
+    }
+
+    public synchronized long getPrefetchesCancelled() {
+        return prefetchesCancelled;
+    }
+
+    // Returns how many get() calls were served by a prefetched image.
+    public synchronized long getPrefetchHits() {
+        return prefetchHits;
+    }
+
+    // Returns how many prefetched images were evicted before being used.
+    public synchronized long getPrefetchesWasted() {
+        return prefetchesWasted;
+    }
+
+    // Returns the fraction of image requests served from prefetched data
+    // rather than loaded on demand.
+    public synchronized double getPrefetchHitRate() {
+        long requests = prefetchHits + misses;
+        return requests == 0 ? 0 : (double) prefetchHits / requests;
+    }
+
+    public synchronized String toString() {
+        return "ImageCache[" + images.size() + " images, " + bytes + "/" + maxBytes + " bytes, " +
+               hits + " hits, " + misses + " misses, " + evictions + " evictions, " +
+               prefetchesIssued + " prefetched, " + prefetchHits + " prefetch hits, " +
+               prefetchesWasted + " wasted, " + prefetchesCancelled + " cancelled]";
+    }
+
+    // Stops the loader threads.
+    public void shutdown() {
+        executor.shutdownNow();
+        prefetchExecutor.shutdownNow();
+    }
+
+    // Marks a task as started.  Returns false if it was cancelled while queued.
+    private synchronized boolean start(String name, boolean prefetch) {
+        if(prefetch && !pendingPrefetches.contains(name)) return false;
+        decoding.add(name);
+        return true;
+    }
+
+    // Stores a decoded image and evicts least recently used images until the
+    // cache fits in its budget again.  The new image is always kept.
+    private synchronized void put(String name, BufferedImage image, boolean prefetch) {
+        decoding.remove(name);
+        pending.remove(name);
+        if(prefetch) {
+            pendingPrefetches.remove(name);
+            prefetched.add(name);
+            prefetchedBytes += imageBytes(image);
+        }
+        images.put(name, image);
+        bytes += imageBytes(image);
+        Iterator<Map.Entry<String, BufferedImage>> it = images.entrySet().iterator();
+        while(bytes > maxBytes && images.size() > 1) {
+            Map.Entry<String, BufferedImage> eldest = it.next();
+            if(eldest.getKey().equals(name)) continue;
+            bytes -= imageBytes(eldest.getValue());
+            if(prefetched.remove(eldest.getKey())) {
+                prefetchedBytes -= imageBytes(eldest.getValue());
+                prefetchesWasted++;
+            }
+            it.remove();
+            evictions++;
+        }
+    }
+
+    private synchronized void fail(String name) {
+        decoding.remove(name);
+        pending.remove(name);
+        pendingPrefetches.remove(name);
+        failed.put(name, System.nanoTime());
+    }
+
+    // Returns true if an image failed to load too recently to try again.
+    private boolean hasFailed(String name) {
+        Long time = failed.get(name);
+        if(time == null) return false;
+        if(System.nanoTime() - time < RETRY_NANOS) return true;
+        failed.remove(name);
+        return false;
+    }
+
+    // Returns the approximate number of bytes of pixel data held by an image.
+    static long imageBytes(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+
+    private void fireLoaded() {
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                for(Runnable listener : listeners) listener.run();
+            }
+        });
+    }
+
+    private class LoadTask implements Runnable {
+        private final String name;
+        private final boolean prefetch;
+
+        LoadTask(String name, boolean prefetch) {
+            this.name = name;
+            this.prefetch = prefetch;
+        }
+
+        public void run() {
+            if(!start(name, prefetch)) return;
+            try {
+                BufferedImage image = loader.load(name);
+                if(image == null) throw new IOException("no reader for " + name);
+                put(name, image, prefetch);
+            } catch(Exception e) {
+                System.out.println("Error while getting image " + name + ": " + e.getMessage());
+                fail(name);
+            }
+            fireLoaded();
+        }
+    }
+}
@@ -0,0 +1,248 @@
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+// Process-wide timers and counters for the viewer's hot paths.  Every metric
+// is registered as an MXBean under "imagegraph:type=...,name=..." so it can be
+// watched with jconsole or any JMX client, and can also be dumped
+// periodically by startReporting().
+//
+// Recording costs a few atomic adds and no allocation, so the metrics are
+// always on.  Histograms keep four buckets per power of two, which puts
+// percentiles within about 20% of the true value.
+public class Metrics {
+    private static final String DOMAIN = "imagegraph";
+    private static final ConcurrentSkipListMap<String, Object> metrics = new ConcurrentSkipListMap<String, Object>();
+    private static ScheduledExecutorService reporter;
+
+    // JMX view of a Histogram.  Values are in the histogram's unit.
+    public interface HistogramMXBean {
+        String getUnit();
+        long getCount();
+        double getTotal();
+        double getMean();
+        double getMax();
+        double getPercentile50();
+        double getPercentile90();
+        double getPercentile99();
+    }
+
+    // JMX view of a Counter.
+    public interface CounterMXBean {
+        long getCount();
+    }
+
+    // Distribution of non-negative long values, such as durations in
+    // nanoseconds or items drawn per frame.
+    public static class Histogram implements HistogramMXBean {
+        private static final int SUB_BITS = 2;
+
+        private final String unit;
+        private final double scale;
+        private final AtomicLongArray buckets = new AtomicLongArray(64 << SUB_BITS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        // Reported values are recorded values divided by scale.
+        Histogram(String unit, double scale) {
+            this.unit = unit;
+            this.scale = scale;
+        }
+
+        public void record(long value) {
+            if(value < 0) value = 0;
+            buckets.incrementAndGet(bucket(value));
+            count.increment();
+            total.add(value);
+            long m;
+            while(value > (m = max.get()) && !max.compareAndSet(m, value));
+        }
+
+        // Records the time elapsed since a System.nanoTime() reading.
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public String getUnit() {
+            return unit;
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public double getTotal() {
+            return total.sum() / scale;
+        }
+
+        public double getMean() {
+            long n = count.sum();
+            return n == 0 ? 0 : total.sum() / scale / n;
+        }
+
+        public double getMax() {
+            return max.get() / scale;
+        }
+
+        public double getPercentile50() {
+            return percentile(0.50);
+        }
+
+        public double getPercentile90() {
+            return percentile(0.90);
+        }
+
+        public double getPercentile99() {
+            return percentile(0.99);
+        }
+
+        // Returns the upper bound of the bucket holding the given fraction of
+        // values, capped at the largest value seen.
+        public double percentile(double fraction) {
+            long[] counts = new long[buckets.length()];
+            long n = 0;
+            for(int b = 0; b < counts.length; b++) {
+                counts[b] = buckets.get(b);
+                n += counts[b];
+            }
+            if(n == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(fraction * n));
+            long seen = 0;
+            for(int b = 0; b < counts.length; b++) {
+                seen += counts[b];
+                if(seen >= rank) return Math.min(upperBound(b), max.get()) / scale;
+            }
+            return max.get() / scale;
+        }
+
+        // Values below 2^SUB_BITS get a bucket each; above that every power of
+        // two is split into 2^SUB_BITS buckets.
+        static int bucket(long value) {
+            if(value < (1 << SUB_BITS)) return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+            return ((exponent - SUB_BITS + 1) << SUB_BITS) | sub;
+        }
+
+        static long upperBound(int bucket) {
+            if(bucket < (1 << SUB_BITS)) return bucket;
+            int shift = (bucket >> SUB_BITS) - 1;
+            long low = (long) ((1 << SUB_BITS) | (bucket & ((1 << SUB_BITS) - 1))) << shift;
+            return low + (1L << shift) - 1;
+        }
+    }
+
+    // Monotonic count, such as bytes read.
+    public static class Counter implements CounterMXBean {
+        private final LongAdder count = new LongAdder();
+
+        public void add(long n) {
+            count.add(n);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+    }
+
+    // Returns the histogram of durations with the given name, creating it on
+    // first use.  Record nanoseconds; they are reported in milliseconds.
+    public static Histogram timer(String name) {
+        return (Histogram) register(name, "Timer", new Histogram("ms", 1e6));
+    }
+
+    // Returns the histogram of plain values with the given name.
+    public static Histogram histogram(String name, String unit) {
+        return (Histogram) register(name, "Histogram", new Histogram(unit, 1));
+    }
+
+    // Returns the counter with the given name.
+    public static Counter counter(String name) {
+        return (Counter) register(name, "Counter", new Counter());
+    }
+
+    private static Object register(String name, String type, Object metric) {
+        Object existing = metrics.putIfAbsent(name, metric);
+        if(existing != null) return existing;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metric,
+                new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name)));
+        } catch(Exception e) {
+            // No JMX (e.g. a sandboxed applet); the metric still works for reports.
+        }
+        return metric;
+    }
+
+    // Writes one line per metric.
+    public static void report(PrintStream out) {
+        for(Map.Entry<String, Object> entry : metrics.entrySet()) {
+            Object metric = entry.getValue();
+            if(metric instanceof Histogram) {
+                Histogram h = (Histogram) metric;
+                out.println(String.format(Locale.ROOT, "%s: count %d, mean %.3f, p50 %.3f, p90 %.3f, p99 %.3f, max %.3f %s",
+                                          entry.getKey(), h.getCount(), h.getMean(), h.getPercentile50(),
+                                          h.getPercentile90(), h.getPercentile99(), h.getMax(), h.getUnit()));
+            } else {
+                out.println(entry.getKey() + ": " + ((Counter) metric).getCount());
+            }
+        }
+    }
+
+    // Appends one CSV row per metric, stamped with the current time.
+    public static void reportCsv(PrintStream out) {
+        long now = System.currentTimeMillis();
+        for(Map.Entry<String, Object> entry : metrics.entrySet()) {
+            Object metric = entry.getValue();
+            if(metric instanceof Histogram) {
+                Histogram h = (Histogram) metric;
+                out.println(String.format(Locale.ROOT, "%d,%s,%s,%d,%.6f,%.6f,%.6f,%.6f,%.6f,%.6f", now, entry.getKey(),
+                                          h.getUnit(), h.getCount(), h.getTotal(), h.getMean(), h.getPercentile50(),
+                                          h.getPercentile90(), h.getPercentile99(), h.getMax()));
+            } else {
+                out.println(now + "," + entry.getKey() + ",count," + ((Counter) metric).getCount() + ",,,,,,");
+            }
+        }
+        out.flush();
+    }
+
+    // Starts dumping all metrics every graph.metrics.interval seconds if that
+    // system property is set: to the CSV file named by graph.metrics.csv, or
+    // to standard output otherwise.
+    public static synchronized void startReporting() {
+        long interval = Long.getLong("graph.metrics.interval", 0);
+        if(interval <= 0 || reporter != null) return;
+        String csv = System.getProperty("graph.metrics.csv");
+        final PrintStream out;
+        if(csv != null) {
+            File file = new File(csv);
+            boolean header = !file.exists() || file.length() == 0;
+            try {
+                out = new PrintStream(new FileOutputStream(file, true), false, "UTF-8");
+            } catch(IOException e) {
+                System.out.println("Error opening metrics file " + csv + ": " + e.getMessage());
+                return;
+            }
+            if(header) out.println("time,name,unit,count,total,mean,p50,p90,p99,max");
+        } else {
+            out = System.out;
+        }
+        final boolean isCsv = csv != null;
+        reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "metrics-reporter");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        reporter.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                if(isCsv) reportCsv(out);
+                else report(out);
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+}
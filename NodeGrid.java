@@ -0,0 +1,160 @@
+import java.nio.*;
+
+// Uniform grid over node positions in layout coordinates, used to find the
+// node under the mouse without scanning every node.  Nodes are bucketed into
+// roughly one cell per node; each cell lists its nodes in ascending index
+// order, packed into a single array the same way Adjacency packs neighbors.
+public class NodeGrid {
+    private final IntBuffer xs;
+    private final IntBuffer ys;
+    private final int minX, minY;
+    private final int cellsX, cellsY;
+    private final double cellWidth, cellHeight;
+    private final int[] cellStart;
+    private final int[] cellNodes;
+
+    // Builds the grid over the given node positions.
+    public NodeGrid(IntBuffer xs, IntBuffer ys) {
+        this.xs = xs;
+        this.ys = ys;
+        int n = xs.limit();
+        int loX = Integer.MAX_VALUE, loY = Integer.MAX_VALUE;
+        int hiX = Integer.MIN_VALUE, hiY = Integer.MIN_VALUE;
+        for(int i = 0; i < n; i++) {
+            if(xs.get(i) < loX) loX = xs.get(i);
+            if(ys.get(i) < loY) loY = ys.get(i);
+            if(xs.get(i) > hiX) hiX = xs.get(i);
+            if(ys.get(i) > hiY) hiY = ys.get(i);
+        }
+        if(n == 0) loX = loY = hiX = hiY = 0;
+        minX = loX;
+        minY = loY;
+        int side = Math.max(1, (int) Math.sqrt(n));
+        cellsX = side;
+        cellsY = side;
+        cellWidth = ((double) hiX - loX + 1) / cellsX;
+        cellHeight = ((double) hiY - loY + 1) / cellsY;
+
+        cellStart = new int[cellsX * cellsY + 1];
+        int[] cellOf = new int[n];
+        for(int i = 0; i < n; i++) {
+            cellOf[i] = cellIndex(cellX(xs.get(i)), cellY(ys.get(i)));
+            cellStart[cellOf[i] + 1]++;
+        }
+        for(int c = 0; c < cellsX * cellsY; c++) cellStart[c + 1] += cellStart[c];
+        int[] cursor = new int[cellsX * cellsY];
+        System.arraycopy(cellStart, 0, cursor, 0, cursor.length);
+        cellNodes = new int[n];
+        for(int i = 0; i < n; i++) cellNodes[cursor[cellOf[i]]++] = i;
+    }
+
+    // Returns the visible node whose projected screen position is nearest to
+    // the mouse and strictly closer than maxDistance pixels, or -1.  Screen
+    // positions are computed exactly as Graph.draw computes them, and ties go
+    // to the lowest node index, so the result matches a linear scan.
+    public int nearest(int mouseX, int mouseY, double startX, double startY,
+                       double multiplierX, double multiplierY, int maxDistance, EdgeIndex edges) {
+        // A node can only be within maxDistance if each truncated screen
+        // coordinate is; allow one extra pixel for the truncation itself.
+        double reach = maxDistance + 1;
+        double x1 = startX + (mouseX - reach) / multiplierX;
+        double x2 = startX + (mouseX + reach) / multiplierX;
+        double y1 = startY + (mouseY - reach) / multiplierY;
+        double y2 = startY + (mouseY + reach) / multiplierY;
+
+        int cx1 = cellX(Math.floor(x1)), cx2 = cellX(Math.ceil(x2));
+        int cy1 = cellY(Math.floor(y1)), cy2 = cellY(Math.ceil(y2));
+
+        double closestDistance = Double.MAX_VALUE;
+        int closestNode = -1;
+        for(int cy = cy1; cy <= cy2; cy++) {
+            for(int cx = cx1; cx <= cx2; cx++) {
+                int c = cellIndex(cx, cy);
+                for(int k = cellStart[c]; k < cellStart[c + 1]; k++) {
+                    int i = cellNodes[k];
+                    if(edges.isHidden(i)) continue;
+                    int drawX = (int)((xs.get(i) - startX) * multiplierX);
+                    int drawY = (int)((ys.get(i) - startY) * multiplierY);
+
+                    double dx = (double) drawX - mouseX;
+                    double dy = (double) drawY - mouseY;
+                    double distance = Math.sqrt(dx * dx + dy * dy);
+                    if(distance < closestDistance || (distance == closestDistance && i < closestNode)) {
+                        closestDistance = distance;
+                        closestNode = i;
+                    }
+                }
+            }
+        }
+        return closestDistance < maxDistance ? closestNode : -1;
+    }
+
+    // Returns the node nearest to a point in layout coordinates, ties going to
+    // the lowest node index, or -1 if there are no nodes.  Searches rings of
+    // cells outward from the point's cell until no closer node can be found.
+    public int nearest(double x, double y) {
+        if(cellNodes.length == 0) return -1;
+        int pcx = cellX(x), pcy = cellY(y);
+        double step = Math.min(cellWidth, cellHeight);
+        double closestDistance = Double.MAX_VALUE;
+        int closestNode = -1;
+        for(int r = 0; r <= Math.max(cellsX, cellsY); r++) {
+            // Every cell in ring r is at least r - 1 cells away from the point.
+            if((r - 1) * step > closestDistance) break;
+            for(int cy = pcy - r; cy <= pcy + r; cy++) {
+                if(cy < 0 || cy >= cellsY) continue;
+                boolean edgeRow = cy == pcy - r || cy == pcy + r;
+                for(int cx = pcx - r; cx <= pcx + r; cx += edgeRow ? 1 : 2 * Math.max(r, 1)) {
+                    if(cx < 0 || cx >= cellsX) continue;
+                    int c = cellIndex(cx, cy);
+                    for(int k = cellStart[c]; k < cellStart[c + 1]; k++) {
+                        int i = cellNodes[k];
+                        double dx = xs.get(i) - x;
+                        double dy = ys.get(i) - y;
+                        double distance = Math.sqrt(dx * dx + dy * dy);
+                        if(distance < closestDistance || (distance == closestDistance && i < closestNode)) {
+                            closestDistance = distance;
+                            closestNode = i;
+                        }
+                    }
+                }
+            }
+        }
+        return closestNode;
+    }
+
+    // Finds the nodes inside a rectangle in layout coordinates, bounds
+    // included.  Writes as many as fit into out, in cell order, and returns
+    // how many there are in all.
+    public int within(double x1, double y1, double x2, double y2, int[] out) {
+        int count = 0;
+        if(cellNodes.length == 0 || x2 < x1 || y2 < y1) return 0;
+        for(int cy = cellY(y1); cy <= cellY(y2); cy++) {
+            for(int cx = cellX(x1); cx <= cellX(x2); cx++) {
+                int c = cellIndex(cx, cy);
+                for(int k = cellStart[c]; k < cellStart[c + 1]; k++) {
+                    int i = cellNodes[k];
+                    int x = xs.get(i), y = ys.get(i);
+                    if(x < x1 || x > x2 || y < y1 || y > y2) continue;
+                    if(count < out.length) out[count] = i;
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private int cellX(double x) {
+        int c = (int) ((x - minX) / cellWidth);
+        return c < 0 ? 0 : (c >= cellsX ? cellsX - 1 : c);
+    }
+
+    private int cellY(double y) {
+        int c = (int) ((y - minY) / cellHeight);
+        return c < 0 ? 0 : (c >= cellsY ? cellsY - 1 : c);
+    }
+
+    private int cellIndex(int cx, int cy) {
+        return cy * cellsX + cx;
+    }
+}
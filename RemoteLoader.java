@@ -0,0 +1,268 @@
+import java.io.*;
+import java.net.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+// Fetches graph, list and image files over HTTP for URL mode, keeping a copy
+// of each on disk.  A file that is cached already is fetched with a
+// conditional request (If-None-Match / If-Modified-Since from the ETag and
+// Last-Modified the server sent), so an unchanged file costs a 304 instead
+// of a download, and a file checked once is not asked for again until the
+// loader is recreated.  If the server cannot be reached or answers with a
+// server error, a cached copy is used as it is; a file the server answers 404
+// or 410 for is removed from the cache, and other errors are passed on.
+//
+// All requests run on a fixed pool of connections threads, so at most that
+// many connections are open at once; each response is read to the end and
+// closed so that Java keeps the connection alive for the next request to the
+// same server (up to http.maxConnections, 5 by default, per server).  Many
+// requests can be queued at once and are streamed over those connections as
+// they free up.
+//
+// Responses are requested with gzip transfer encoding, and URLs ending in
+// .gz are gunzipped as well, so the cache always holds the plain file.
+//
+// The cache lives in the graph.cache.dir system property's directory, or
+// .imagegraph/cache in the user's home.  Each URL is stored under the
+// SHA-1 of the URL, with its validators in a .properties file next to it.
+public class RemoteLoader {
+    public static final int DEFAULT_CONNECTIONS = 4;
+    private static final int TIMEOUT_MILLIS = 30000;
+    private static final Metrics.Histogram FETCH_TIME = Metrics.timer("remote.fetch");
+    private static final Metrics.Counter DOWNLOADED_BYTES = Metrics.counter("remote.bytes");
+    private static final Metrics.Counter NOT_MODIFIED = Metrics.counter("remote.notModified");
+
+    private final File cacheDirectory;
+    private final ExecutorService executor;
+    // Fetches in flight or done, so each URL is requested at most once.
+    private final ConcurrentHashMap<String, Future<File>> fetches = new ConcurrentHashMap<String, Future<File>>();
+
+    // Creates a loader that caches in the default directory.
+    public RemoteLoader() {
+        this(defaultCacheDirectory(), DEFAULT_CONNECTIONS);
+    }
+
+    // Creates a loader that caches in the given directory and opens at most
+    // connections connections at once.
+    public RemoteLoader(File cacheDirectory, int connections) {
+        this.cacheDirectory = cacheDirectory;
+        executor = Executors.newFixedThreadPool(connections, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "remote-loader");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public static File defaultCacheDirectory() {
+        String directory = System.getProperty("graph.cache.dir");
+        if(directory != null) return new File(directory);
+        return new File(new File(System.getProperty("user.home"), ".imagegraph"), "cache");
+    }
+
+    // Starts fetching a URL, unless it has been fetched already, and returns
+    // the future cached file.  A failed fetch is tried again on the next call.
+    public Future<File> fetch(final String url) {
+        Future<File> fetch = fetches.get(url);
+        if(fetch != null) return fetch;
+        FutureTask<File> task = new FutureTask<File>(new Callable<File>() {
+            public File call() throws IOException {
+                try {
+                    return download(url);
+                } catch(IOException e) {
+                    fetches.remove(url);
+                    throw e;
+                }
+            }
+        });
+        fetch = fetches.putIfAbsent(url, task);
+        if(fetch != null) return fetch;
+        executor.execute(task);
+        return task;
+    }
+
+    // Fetches a URL and waits for it.  Returns the cached file.
+    public File get(String url) throws IOException {
+        try {
+            return fetch(url).get();
+        } catch(InterruptedException e) {
+            throw new InterruptedIOException("interrupted fetching " + url);
+        } catch(ExecutionException e) {
+            if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException("error fetching " + url, e.getCause());
+        }
+    }
+
+    // Brings the cached copy of a URL up to date and returns it.
+    private File download(String url) throws IOException {
+        long start = System.nanoTime();
+        File file = cacheFile(url);
+        File validatorFile = new File(file.getPath() + ".properties");
+        Properties validators = new Properties();
+        if(file.exists() && validatorFile.exists()) {
+            InputStream in = new FileInputStream(validatorFile);
+            try {
+                validators.load(in);
+            } finally {
+                in.close();
+            }
+        }
+
+        URLConnection connection;
+        InputStream in;
+        try {
+            connection = new URL(url).openConnection();
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+            if(validators.getProperty("etag") != null) {
+                connection.setRequestProperty("If-None-Match", validators.getProperty("etag"));
+            }
+            if(validators.getProperty("lastModified") != null) {
+                connection.setRequestProperty("If-Modified-Since", validators.getProperty("lastModified"));
+            }
+            if(connection instanceof HttpURLConnection) {
+                HttpURLConnection http = (HttpURLConnection) connection;
+                int status = http.getResponseCode();
+                if(status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    drain(http.getInputStream());
+                    NOT_MODIFIED.add(1);
+                    FETCH_TIME.recordSince(start);
+                    return file;
+                }
+                if(status != HttpURLConnection.HTTP_OK) {
+                    InputStream error = http.getErrorStream();
+                    if(error != null) drain(error);
+                    String reason = "HTTP " + status + " fetching " + url;
+                    // A server error is likely to pass, so keep using the last good copy.
+                    if(status >= 500 && file.exists()) return useCached(url, file, reason);
+                    if(status == HttpURLConnection.HTTP_NOT_FOUND || status == HttpURLConnection.HTTP_GONE) {
+                        validatorFile.delete();
+                        file.delete();
+                    }
+                    throw new IOException(reason);
+                }
+            }
+            in = connection.getInputStream();
+        } catch(IOException e) {
+            if(!file.exists() || !isUnreachable(e)) throw e;
+            return useCached(url, file, e.toString());
+        }
+
+        // Download next to the cached copy and swap it in.
+        if(!cacheDirectory.isDirectory() && !cacheDirectory.mkdirs()) {
+            drain(in);
+            throw new IOException("cannot create cache directory " + cacheDirectory);
+        }
+        File temp = File.createTempFile(file.getName(), ".tmp", cacheDirectory);
+        CountingInputStream raw = new CountingInputStream(in);
+        try {
+            InputStream body = raw;
+            try {
+                if("gzip".equalsIgnoreCase(connection.getContentEncoding())) body = new GZIPInputStream(body);
+                if(url.endsWith(".gz")) body = new GZIPInputStream(body);
+                OutputStream out = new FileOutputStream(temp);
+                try {
+                    byte[] buffer = new byte[1 << 16];
+                    int n;
+                    while((n = body.read(buffer)) > 0) out.write(buffer, 0, n);
+                    // Let the connection be reused even if gunzipping stopped early.
+                    while(raw.read(buffer) > 0) {
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                // Also frees the inflaters, and closes the connection's stream.
+                body.close();
+            }
+            validators.clear();
+            if(connection.getHeaderField("ETag") != null) validators.setProperty("etag", connection.getHeaderField("ETag"));
+            if(connection.getHeaderField("Last-Modified") != null) {
+                validators.setProperty("lastModified", connection.getHeaderField("Last-Modified"));
+            }
+            validators.setProperty("url", url);
+            // Write the validators last, so a cached file never has ones that are newer than it.
+            validatorFile.delete();
+            if(file.exists() && !file.delete()) throw new IOException("cannot replace " + file);
+            if(!temp.renameTo(file)) throw new IOException("cannot rename " + temp + " to " + file);
+            OutputStream out2 = new FileOutputStream(validatorFile);
+            try {
+                validators.store(out2, null);
+            } finally {
+                out2.close();
+            }
+        } finally {
+            temp.delete();
+        }
+        DOWNLOADED_BYTES.add(raw.count);
+        FETCH_TIME.recordSince(start);
+        return file;
+    }
+
+    // Returns true for the errors of a server that could not be reached at all.
+    private static boolean isUnreachable(IOException e) {
+        return e instanceof ConnectException || e instanceof SocketTimeoutException ||
+               e instanceof UnknownHostException || e instanceof NoRouteToHostException;
+    }
+
+    private static File useCached(String url, File file, String reason) {
+        System.out.println("Using cached " + url + ": " + reason);
+        return file;
+    }
+
+    // Reads a stream to the end and closes it.
+    private static void drain(InputStream in) throws IOException {
+        try {
+            byte[] buffer = new byte[1 << 13];
+            while(in.read(buffer) > 0) {
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    // Input stream that counts the bytes read through it.
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        public int read() throws IOException {
+            int b = super.read();
+            if(b >= 0) count++;
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if(n > 0) count += n;
+            return n;
+        }
+
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    // Returns the file a URL is cached in.
+    private File cacheFile(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(url.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder();
+            for(byte b : digest) name.append(String.format("%02x", b & 0xff));
+            return new File(cacheDirectory, name.toString());
+        } catch(GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        } catch(UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
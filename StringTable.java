@@ -0,0 +1,77 @@
+import java.nio.*;
+import java.nio.charset.*;
+
+// Compact table of strings stored as one UTF-8 byte blob plus an offset per
+// string.  String i occupies bytes offsets[i] .. offsets[i + 1] - 1.  Strings
+// are decoded on demand, so a table mapped from a GraphSnapshot costs no heap
+// until its entries are used.
+public class StringTable {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final IntBuffer offsets;
+    private final ByteBuffer bytes;
+
+    // Wraps existing offset and byte buffers.
+    public StringTable(IntBuffer offsets, ByteBuffer bytes) {
+        this.offsets = offsets;
+        this.bytes = bytes;
+    }
+
+    // Builds a heap table holding the given strings.
+    public static StringTable of(String[] strings) {
+        int[] offsets = new int[strings.length + 1];
+        byte[][] encoded = new byte[strings.length][];
+        for(int i = 0; i < strings.length; i++) {
+            encoded[i] = strings[i].getBytes(UTF8);
+            offsets[i + 1] = offsets[i] + encoded[i].length;
+        }
+        byte[] blob = new byte[offsets[strings.length]];
+        for(int i = 0; i < strings.length; i++) {
+            System.arraycopy(encoded[i], 0, blob, offsets[i], encoded[i].length);
+        }
+        return new StringTable(IntBuffer.wrap(offsets), ByteBuffer.wrap(blob));
+    }
+
+    // Returns a new heap table holding this table's strings followed by more.
+    public StringTable append(String[] more) {
+        int count = size();
+        int[] newOffsets = new int[count + more.length + 1];
+        for(int i = 0; i <= count; i++) newOffsets[i] = offsets.get(i);
+        byte[][] encoded = new byte[more.length][];
+        for(int i = 0; i < more.length; i++) {
+            encoded[i] = more[i].getBytes(UTF8);
+            newOffsets[count + i + 1] = newOffsets[count + i] + encoded[i].length;
+        }
+        byte[] blob = new byte[newOffsets[count + more.length]];
+        ByteBuffer old = bytes.duplicate();
+        old.position(0);
+        old.get(blob, 0, newOffsets[count]);
+        for(int i = 0; i < more.length; i++) {
+            System.arraycopy(encoded[i], 0, blob, newOffsets[count + i], encoded[i].length);
+        }
+        return new StringTable(IntBuffer.wrap(newOffsets), ByteBuffer.wrap(blob));
+    }
+
+    // Returns the number of strings.
+    public int size() {
+        return offsets.limit() - 1;
+    }
+
+    // Returns string i.
+    public String get(int i) {
+        int start = offsets.get(i);
+        byte[] utf8 = new byte[offsets.get(i + 1) - start];
+        for(int k = 0; k < utf8.length; k++) utf8[k] = bytes.get(start + k);
+        return new String(utf8, UTF8);
+    }
+
+    // Returns the offset of string i in the byte blob; offset(size()) is the blob length.
+    public int offset(int i) {
+        return offsets.get(i);
+    }
+
+    // Returns byte k of the blob.
+    public byte byteAt(int k) {
+        return bytes.get(k);
+    }
+}
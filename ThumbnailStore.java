@@ -0,0 +1,360 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.awt.*;
+import java.awt.image.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.imageio.*;
+import javax.imageio.stream.*;
+
+// Single file of pre-scaled JPEG images, one for each line of a list file in
+// list order, opened with memory-mapped I/O.  Decoding a thumbnail that fits
+// the image panel takes a few milliseconds instead of the tens or hundreds a
+// full-size photo takes.  Graph uses a store automatically when
+// listFile + SUFFIX exists and is newer than the list file, and falls back to
+// the images directory for images that are not in it.  To create one:
+//
+//     java -cp GraphApplet.jar ThumbnailStore list images [store]
+//
+// Layout, all little-endian, each section starting at the end of the previous:
+//
+//     header       magic, version, images, max width, max height, name bytes
+//     offsets      long[images + 1]   offsets of the JPEG data of each image,
+//                                     relative to the start of the data
+//     nameOffsets  int[images + 1]    offsets into the name blob
+//     names        byte[name bytes]   UTF-8 image names, as Graph shows them
+//     data         JPEG images; an image that could not be read is empty
+public class ThumbnailStore {
+    public static final String SUFFIX = ".thumbs";
+    public static final int DEFAULT_WIDTH = 400;
+    public static final int DEFAULT_HEIGHT = 800;
+
+    private static final int MAGIC = 0x4d554854;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    // Largest part of the data mapped as one buffer; images never straddle two.
+    private static final long MAX_SEGMENT_BYTES = 1L << 30;
+    private static final float JPEG_QUALITY = 0.85f;
+
+    public final int imageCount;
+    public final int maxWidth, maxHeight;
+    private final LongBuffer offsets;
+    private final HashMap<String, Integer> imageOfName;
+    // Data segments and the first image of each.
+    private final ByteBuffer[] segments;
+    private final int[] segmentStart;
+
+    private ThumbnailStore(int imageCount, int maxWidth, int maxHeight, LongBuffer offsets, StringTable names,
+                           ByteBuffer[] segments, int[] segmentStart) {
+        this.imageCount = imageCount;
+        this.maxWidth = maxWidth;
+        this.maxHeight = maxHeight;
+        this.offsets = offsets;
+        this.segments = segments;
+        this.segmentStart = segmentStart;
+        imageOfName = new HashMap<String, Integer>(imageCount * 2);
+        for(int i = imageCount - 1; i >= 0; i--) imageOfName.put(names.get(i), i);
+    }
+
+    // Maps a store.  The mappings stay valid after the file is closed.
+    public static ThumbnailStore open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = map(channel, 0, HEADER_BYTES);
+            if(header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IOException(file + " is not a version " + VERSION + " thumbnail store");
+            }
+            int images = header.getInt(8);
+            int maxWidth = header.getInt(12);
+            int maxHeight = header.getInt(16);
+            int nameBytes = header.getInt(20);
+            // Check the counts before mapping, which rejects bad sizes with unchecked exceptions.
+            if(images < 0 || nameBytes < 0 || HEADER_BYTES + 12L * images + 12 + nameBytes > channel.size()) {
+                throw new IOException(file + " is truncated or corrupt");
+            }
+
+            long position = HEADER_BYTES;
+            LongBuffer offsets = map(channel, position, 8L * (images + 1)).asLongBuffer();
+            position += 8L * (images + 1);
+            IntBuffer nameOffsets = map(channel, position, 4L * (images + 1)).asIntBuffer();
+            position += 4L * (images + 1);
+            ByteBuffer nameBlob = map(channel, position, nameBytes);
+            position += nameBytes;
+            for(int i = 0; i < images; i++) {
+                if(offsets.get(i) > offsets.get(i + 1) || nameOffsets.get(i) > nameOffsets.get(i + 1)) {
+                    throw new IOException(file + " is truncated or corrupt");
+                }
+            }
+            if(offsets.get(0) != 0 || nameOffsets.get(0) != 0 || nameOffsets.get(images) != nameBytes ||
+               position + offsets.get(images) != channel.size()) {
+                throw new IOException(file + " is truncated or corrupt");
+            }
+
+            // Split the data at image boundaries into segments small enough to map.
+            ArrayList<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+            int[] segmentStart = new int[images + 1];
+            int first = 0;
+            while(first < images) {
+                int end = first + 1;
+                while(end < images && offsets.get(end + 1) - offsets.get(first) <= MAX_SEGMENT_BYTES) end++;
+                segmentStart[segments.size()] = first;
+                segments.add(map(channel, position + offsets.get(first), offsets.get(end) - offsets.get(first)));
+                first = end;
+            }
+            segmentStart[segments.size()] = images;
+
+            return new ThumbnailStore(images, maxWidth, maxHeight, offsets, new StringTable(nameOffsets, nameBlob),
+                                      segments.toArray(new ByteBuffer[0]),
+                                      Arrays.copyOf(segmentStart, segments.size() + 1));
+        } finally {
+            raf.close();
+        }
+    }
+
+    // Returns true if the store exists and is newer than the list file.
+    public static boolean isFresh(File store, File listFile) {
+        return store.isFile() && listFile.lastModified() < store.lastModified();
+    }
+
+    // Decodes the thumbnail of the named image, or returns null if the store
+    // does not have it.
+    public BufferedImage read(String name) throws IOException {
+        Integer image = imageOfName.get(name);
+        if(image == null) return null;
+        ByteBuffer data = data(image);
+        if(!data.hasRemaining()) return null;
+        return ImageIO.read(new MemoryCacheImageInputStream(new BufferInputStream(data)));
+    }
+
+    // Returns the size in bytes of the named image's thumbnail, or 0.
+    public long bytes(String name) {
+        Integer image = imageOfName.get(name);
+        if(image == null) return 0;
+        return offsets.get(image + 1) - offsets.get(image);
+    }
+
+    // Returns a buffer over the JPEG data of an image.
+    private ByteBuffer data(int image) {
+        int segment = Arrays.binarySearch(segmentStart, image);
+        if(segment < 0) segment = -segment - 2;
+        long base = offsets.get(segmentStart[segment]);
+        ByteBuffer data = segments[segment].duplicate();
+        data.limit((int) (offsets.get(image + 1) - base));
+        data.position((int) (offsets.get(image) - base));
+        return data;
+    }
+
+    // Decodes an image at no more than the resolution needed to show it within
+    // maxWidth by maxHeight pixels: the reader skips rows and columns by the
+    // largest whole factor that still leaves the image at least as large as it
+    // is shown, so no time or heap goes to detail the panel scales away.  A
+    // maxWidth of 0 decodes the full image.  Returns null if no reader handles
+    // the format, like ImageIO.read().
+    public static BufferedImage readScaled(File file, int maxWidth, int maxHeight) throws IOException {
+        ImageInputStream in = ImageIO.createImageInputStream(file);
+        if(in == null) throw new FileNotFoundException(file.getPath());
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if(!readers.hasNext()) return null;
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                if(maxWidth > 0 && maxHeight > 0) {
+                    int step = Math.max(reader.getWidth(0) / maxWidth, reader.getHeight(0) / maxHeight);
+                    if(step > 1) param.setSourceSubsampling(step, step, 0, 0);
+                }
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    // Scales an image down to fit within maxWidth by maxHeight, halving it
+    // with bilinear filtering while it is more than twice too large so that
+    // the result is not aliased.
+    static BufferedImage fit(BufferedImage image, int maxWidth, int maxHeight) {
+        double scale = Math.min(1.0, Math.min((double) maxWidth / image.getWidth(), (double) maxHeight / image.getHeight()));
+        int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+        BufferedImage current = image;
+        do {
+            int w = Math.max(width, current.getWidth() / 2);
+            int h = Math.max(height, current.getHeight() / 2);
+            BufferedImage next = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = next.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(current, 0, 0, w, h, null);
+            g.dispose();
+            current = next;
+        } while(current.getWidth() != width || current.getHeight() != height);
+        return current;
+    }
+
+    // Encodes an image as a JPEG.
+    static byte[] encode(BufferedImage image) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageOutputStream out = new MemoryCacheImageOutputStream(bytes);
+        try {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(JPEG_QUALITY);
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    // Builds a store from the images named in a list file.  Images are
+    // decoded and scaled on all cores and written in list order; the data
+    // goes to a temporary file that is renamed into place.
+    public static void write(File file, File listFile, final String imagesDirectory,
+                             final int maxWidth, final int maxHeight) throws IOException {
+        ArrayList<String> names = new ArrayList<String>();
+        BufferedReader listReader = new BufferedReader(new FileReader(listFile));
+        try {
+            String line;
+            while((line = listReader.readLine()) != null) names.add(Graph.imageName(line));
+        } finally {
+            listReader.close();
+        }
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        File temp = new File(file.getPath() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(temp, "rw");
+        try {
+            out.setLength(0);
+            byte[][] nameBytes = new byte[names.size()][];
+            int nameTotal = 0;
+            for(int i = 0; i < names.size(); i++) {
+                nameBytes[i] = names.get(i).getBytes("UTF-8");
+                nameTotal += nameBytes[i].length;
+            }
+            long dataStart = HEADER_BYTES + 8L * (names.size() + 1) + 4L * (names.size() + 1) + nameTotal;
+
+            // Keep a bounded window of images in flight so memory stays flat.
+            ArrayDeque<Future<byte[]>> window = new ArrayDeque<Future<byte[]>>();
+            long[] offsets = new long[names.size() + 1];
+            int submitted = 0;
+            int missing = 0;
+            out.seek(dataStart);
+            for(int i = 0; i < names.size(); i++) {
+                while(submitted < names.size() && window.size() < 4 * threads) {
+                    final String name = names.get(submitted++);
+                    window.add(pool.submit(new Callable<byte[]>() {
+                        public byte[] call() {
+                            // Decoders throw unchecked exceptions on damaged files, and one
+                            // bad image must not stop the whole store.
+                            try {
+                                BufferedImage image = readScaled(new File(imagesDirectory + name), maxWidth, maxHeight);
+                                if(image != null) return encode(fit(image, maxWidth, maxHeight));
+                                System.out.println("Cannot read " + imagesDirectory + name + ": no reader for its format");
+                            } catch(Exception e) {
+                                System.out.println("Cannot read " + imagesDirectory + name + ": " + e.getMessage());
+                            }
+                            return new byte[0];
+                        }
+                    }));
+                }
+                byte[] jpeg;
+                try {
+                    jpeg = window.poll().get();
+                } catch(Exception e) {
+                    throw new IOException("error scaling " + names.get(i), e);
+                }
+                if(jpeg.length == 0) missing++;
+                out.write(jpeg);
+                offsets[i + 1] = offsets[i] + jpeg.length;
+            }
+
+            ByteBuffer index = ByteBuffer.allocate((int) dataStart).order(ByteOrder.LITTLE_ENDIAN);
+            index.putInt(MAGIC);
+            index.putInt(VERSION);
+            index.putInt(names.size());
+            index.putInt(maxWidth);
+            index.putInt(maxHeight);
+            index.putInt(nameTotal);
+            index.putInt(0);
+            index.putInt(0);
+            for(long offset : offsets) index.putLong(offset);
+            int nameOffset = 0;
+            for(int i = 0; i < names.size(); i++) {
+                index.putInt(nameOffset);
+                nameOffset += nameBytes[i].length;
+            }
+            index.putInt(nameOffset);
+            for(byte[] name : nameBytes) index.put(name);
+            out.seek(0);
+            out.write(index.array());
+            if(missing > 0) System.out.println(missing + " images could not be read.");
+        } finally {
+            pool.shutdownNow();
+            out.close();
+        }
+        if(file.exists() && !file.delete()) throw new IOException("cannot replace " + file);
+        if(!temp.renameTo(file)) throw new IOException("cannot rename " + temp + " to " + file);
+    }
+
+    private static ByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+        if(size > Integer.MAX_VALUE) throw new IOException("store section too large to map: " + size + " bytes");
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // Input stream over the remaining bytes of a buffer.
+    private static class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        public int read(byte[] b, int off, int len) {
+            if(!buffer.hasRemaining()) return -1;
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        public long skip(long n) {
+            int skipped = (int) Math.min(n, buffer.remaining());
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    // Scales the images named in a list file into a store next to the list.
+    public static void main(String args[]) throws IOException {
+        if(args.length < 2 || args.length > 3) {
+            System.out.println("usage: java -cp GraphApplet.jar ThumbnailStore list images [store]");
+            System.out.println("list   - input file listing image filenames.");
+            System.out.println("images - directory holding the images.");
+            System.out.println("store  - output file, list" + SUFFIX + " by default.");
+            System.exit(1);
+        }
+        File output = new File(args.length == 3 ? args[2] : args[0] + SUFFIX);
+        String imagesDirectory = args[1] + System.getProperty("file.separator");
+        long start = System.currentTimeMillis();
+        write(output, new File(args[0]), imagesDirectory, DEFAULT_WIDTH, DEFAULT_HEIGHT);
+        System.out.println("Wrote " + output + " (" + output.length() + " bytes) in " +
+                           (System.currentTimeMillis() - start) + " ms.");
+        System.exit(0);
+    }
+}
@@ -0,0 +1,211 @@
+import java.io.*;
+import java.awt.*;
+import java.awt.image.*;
+import javax.imageio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Headless batch renderer that writes the graph as a pyramid of PNG tiles for
+// a static zoomable web map.  Zoom level z covers the square around the
+// graph's range with 2^z by 2^z tiles, written to out/z/x/y.png; empty tiles
+// are not written.  Edges and nodes are drawn with Graph.drawEdge and
+// Graph.drawNode, so colors, node sizes and the filtering of isolated nodes
+// and mutual pairs match the viewer.
+//
+// Each level is rendered by a fork/join task that splits its block of tiles
+// into quadrants, handing each quadrant only the edges and nodes that overlap
+// it, until single tiles are left.
+public class TileRenderer {
+    private static final int TILE_SIZE = 256;
+    private static final int MAX_NODE_SIZE = 32;
+
+    private final Graph graph;
+    private final Adjacency adjacency;
+    private final File outputDirectory;
+    private final double worldX, worldY, worldSize;
+    private final AtomicLong tilesWritten = new AtomicLong();
+    private final AtomicLong edgesDrawn = new AtomicLong();
+
+    public TileRenderer(Graph graph, File outputDirectory) {
+        this.graph = graph;
+        this.adjacency = graph.getAdjacency();
+        this.outputDirectory = outputDirectory;
+        double[] range = graph.getRange();
+        worldSize = Math.max(1, Math.max(range[2] - range[0], range[3] - range[1]));
+        worldX = range[0] - (worldSize - (range[2] - range[0])) / 2;
+        worldY = range[1] - (worldSize - (range[3] - range[1])) / 2;
+    }
+
+    // Renders every tile of one zoom level using the given pool.
+    public void renderLevel(int zoom, ForkJoinPool pool) {
+        int n = graph.getNodeCount();
+        int[] nodes = new int[n];
+        int nodeCount = 0;
+        int[] from = new int[adjacency.entries() / 2];
+        int[] entries = new int[from.length];
+        int edgeCount = 0;
+        for(int i = 0; i < n; i++) {
+            if(adjacency.isHidden(i)) continue;
+            nodes[nodeCount++] = i;
+            for(int k = adjacency.start(i); k < adjacency.end(i); k++) {
+                if(i < adjacency.neighbor(k)) {
+                    from[edgeCount] = i;
+                    entries[edgeCount] = k;
+                    edgeCount++;
+                }
+            }
+        }
+        pool.invoke(new TileBlock(zoom, 0, 0, 1 << zoom, from, entries, edgeCount, nodes, nodeCount));
+    }
+
+    public long getTilesWritten() {
+        return tilesWritten.get();
+    }
+
+    public long getEdgesDrawn() {
+        return edgesDrawn.get();
+    }
+
+    // A square block of tiles at one zoom level together with the edges and
+    // nodes that may touch it.
+    private class TileBlock extends RecursiveAction {
+        private final int zoom, tileX, tileY, span;
+        private final int[] from, entries, nodes;
+        private final int edgeCount, nodeCount;
+
+        TileBlock(int zoom, int tileX, int tileY, int span, int[] from, int[] entries, int edgeCount, int[] nodes, int nodeCount) {
+            this.zoom = zoom;
+            this.tileX = tileX;
+            this.tileY = tileY;
+            this.span = span;
+            this.from = from;
+            this.entries = entries;
+            this.edgeCount = edgeCount;
+            this.nodes = nodes;
+            this.nodeCount = nodeCount;
+        }
+
+        protected void compute() {
+            if(edgeCount == 0 && nodeCount == 0) return;
+            if(span == 1) {
+                renderTile();
+                return;
+            }
+            int half = span / 2;
+            invokeAll(quadrant(tileX, tileY, half), quadrant(tileX + half, tileY, half),
+                      quadrant(tileX, tileY + half, half), quadrant(tileX + half, tileY + half, half));
+        }
+
+        // Returns the sub-block at the given tile, keeping only the edges and
+        // nodes whose bounding boxes overlap it.
+        private TileBlock quadrant(int x, int y, int size) {
+            double tileLayoutSize = worldSize / (1 << zoom);
+            double x1 = worldX + x * tileLayoutSize, x2 = x1 + size * tileLayoutSize;
+            double y1 = worldY + y * tileLayoutSize, y2 = y1 + size * tileLayoutSize;
+            double pixel = tileLayoutSize / TILE_SIZE;
+            double lineMargin = 2 * pixel, nodeMargin = MAX_NODE_SIZE * pixel;
+
+            int[] subFrom = new int[edgeCount];
+            int[] subEntries = new int[edgeCount];
+            int subEdges = 0;
+            for(int e = 0; e < edgeCount; e++) {
+                int i = from[e], j = adjacency.neighbor(entries[e]);
+                int xi = graph.getX(i), yi = graph.getY(i), xj = graph.getX(j), yj = graph.getY(j);
+                if(Math.max(xi, xj) < x1 - lineMargin || Math.min(xi, xj) > x2 + lineMargin ||
+                   Math.max(yi, yj) < y1 - lineMargin || Math.min(yi, yj) > y2 + lineMargin) continue;
+                subFrom[subEdges] = i;
+                subEntries[subEdges] = entries[e];
+                subEdges++;
+            }
+            int[] subNodes = new int[nodeCount];
+            int subNodeCount = 0;
+            for(int v = 0; v < nodeCount; v++) {
+                int x0 = graph.getX(nodes[v]), y0 = graph.getY(nodes[v]);
+                if(x0 < x1 - nodeMargin || x0 > x2 + nodeMargin || y0 < y1 - nodeMargin || y0 > y2 + nodeMargin) continue;
+                subNodes[subNodeCount++] = nodes[v];
+            }
+            return new TileBlock(zoom, x, y, size, Arrays.copyOf(subFrom, subEdges), Arrays.copyOf(subEntries, subEdges),
+                                 subEdges, Arrays.copyOf(subNodes, subNodeCount), subNodeCount);
+        }
+
+        // Draws a single tile, projecting into level-wide pixel coordinates so
+        // that edges crossing tile borders line up.
+        private void renderTile() {
+            double scale = TILE_SIZE * (double) (1 << zoom) / worldSize;
+            int offsetX = tileX * TILE_SIZE, offsetY = tileY * TILE_SIZE;
+            BufferedImage image = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+            Graphics g = image.getGraphics();
+
+            // A pixel wider than the tile, so that no edge that touches it by rounding is skipped.
+            Rectangle bounds = new Rectangle(-1, -1, TILE_SIZE + 2, TILE_SIZE + 2);
+            int drawn = 0;
+            for(int e = 0; e < edgeCount; e++) {
+                int i = from[e], j = adjacency.neighbor(entries[e]);
+                int drawX = (int)((graph.getX(i) - worldX) * scale) - offsetX;
+                int drawY = (int)((graph.getY(i) - worldY) * scale) - offsetY;
+                int neighborX = (int)((graph.getX(j) - worldX) * scale) - offsetX;
+                int neighborY = (int)((graph.getY(j) - worldY) * scale) - offsetY;
+                // As in Graph.drawBase, edges no longer than a pixel are hidden under the node.
+                int dx = neighborX - drawX, dy = neighborY - drawY;
+                if(dx >= -1 && dx <= 1 && dy >= -1 && dy <= 1) continue;
+                // The block's bounding box test lets in long edges that pass beside the tile.
+                if(!bounds.intersectsLine(drawX, drawY, neighborX, neighborY)) continue;
+                graph.drawEdge(g, entries[e], drawX, drawY, neighborX, neighborY);
+                drawn++;
+            }
+            int nodesDrawn = 0;
+            for(int v = 0; v < nodeCount; v++) {
+                int i = nodes[v];
+                int x = (int)((graph.getX(i) - worldX) * scale) - offsetX;
+                int y = (int)((graph.getY(i) - worldY) * scale) - offsetY;
+                // The block's margin lets in nodes up to MAX_NODE_SIZE away; skip those that stay outside.
+                int size = graph.getNodeSize(i), left = x - size / 2, top = y - size / 2;
+                if(left + size <= 0 || left >= TILE_SIZE || top + size <= 0 || top >= TILE_SIZE) continue;
+                graph.drawNode(g, i, x, y);
+                nodesDrawn++;
+            }
+            g.dispose();
+            edgesDrawn.addAndGet(drawn);
+            if(drawn == 0 && nodesDrawn == 0) return;
+
+            File file = new File(outputDirectory, zoom + File.separator + tileX + File.separator + tileY + ".png");
+            file.getParentFile().mkdirs();
+            try {
+                ImageIO.write(image, "png", file);
+                tilesWritten.incrementAndGet();
+            } catch(IOException e) {
+                System.out.println("Error writing tile " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // Main.
+    public static void main(String args[]) {
+        if(args.length < 3 || args.length > 4) {
+            System.out.println("usage: java -cp GraphApplet.jar TileRenderer graph list out_dir [max_zoom]");
+            System.out.println("graph    - input file describing graph.");
+            System.out.println("list     - input file listing image filenames.");
+            System.out.println("out_dir  - directory to write out_dir/zoom/x/y.png tiles to.");
+            System.out.println("max_zoom - deepest zoom level to render, 5 by default.");
+            System.exit(1);
+        }
+        System.setProperty("java.awt.headless", "true");
+        int maxZoom = args.length == 4 ? Integer.parseInt(args[3]) : 5;
+
+        Graph graph = new Graph(args[0], args[1], "", false);
+        TileRenderer renderer = new TileRenderer(graph, new File(args[2]));
+        ForkJoinPool pool = new ForkJoinPool();
+        for(int zoom = 0; zoom <= maxZoom; zoom++) {
+            long start = System.currentTimeMillis();
+            long tiles = renderer.getTilesWritten(), edges = renderer.getEdgesDrawn();
+            renderer.renderLevel(zoom, pool);
+            long elapsed = Math.max(1, System.currentTimeMillis() - start);
+            edges = renderer.getEdgesDrawn() - edges;
+            System.out.println("Zoom " + zoom + ": " + (renderer.getTilesWritten() - tiles) + " tiles, " +
+                               edges + " edges in " + elapsed + " ms (" + (edges * 60000 / elapsed) + " edges/min).");
+        }
+        pool.shutdown();
+        System.exit(0);
+    }
+}
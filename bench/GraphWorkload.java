@@ -0,0 +1,32 @@
+import java.awt.*;
+import java.awt.image.*;
+import java.io.*;
+
+// Bridges the benchmarks in package bench to Graph, which lives in the default
+// package.  See bench.Workload.
+public class GraphWorkload implements bench.Workload {
+    private Graph graph;
+
+    public Object load(String graphFile, String listFile, String imagesDirectory) {
+        // Always parse: a snapshot would turn the parse benchmark into a file mapping benchmark.
+        graph = new Graph(graphFile, listFile, imagesDirectory, false, false);
+        return graph;
+    }
+
+    public double[] getRange() {
+        return graph.getRange();
+    }
+
+    public String select(int mouseX, int mouseY, double startX, double startY, double endX, double endY, int panelWidth, int panelHeight) {
+        graph.setSelected(mouseX, mouseY, startX, startY, endX, endY, panelWidth, panelHeight);
+        return graph.getSelectedBasename();
+    }
+
+    public void draw(Graphics g, double startX, double startY, double endX, double endY, int panelWidth, int panelHeight) {
+        graph.draw(g, startX, startY, endX, endY, panelWidth, panelHeight);
+    }
+
+    public BufferedImage decodeSelectedImage() throws IOException {
+        return graph.readImage(graph.getSelectedBasename());
+    }
+}
@@ -0,0 +1,154 @@
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+import com.sun.net.httpserver.*;
+
+// Checks RemoteLoader against a stand-in HTTP server on a free local port,
+// made by "make check-remote":
+//
+//     /plain     answers 304 to a matching If-None-Match
+//     /dated     answers 304 to a matching If-Modified-Since
+//     /encoded   sends gzip transfer encoding when asked for it
+//     /file.gz   a gzip file, sent as it is
+//     /flaky     200 until the check sets its status to something else
+//
+// Every check uses a new loader, since a loader asks for each URL only once,
+// but all of them share one cache directory.  Prints a line for each check
+// and exits with status 1 if any failed.
+public class RemoteLoaderCheck {
+    private static final String ETAG = "\"v1\"";
+    private static final String LAST_MODIFIED = "Tue, 01 Sep 2026 12:00:00 GMT";
+
+    private static byte[] body;
+    private static volatile int flakyStatus = 200;
+    private static volatile int notModified;
+    private static volatile boolean sentGzip;
+    private static int failures;
+
+    public static void main(String args[]) throws Exception {
+        // Compressible, and large enough to span many reads.
+        StringBuilder text = new StringBuilder();
+        for(int i = 0; i < 20000; i++) text.append("node").append(i).append(" -> node").append(i * 7 % 20000).append(";\n");
+        body = text.toString().getBytes("UTF-8");
+
+        File cache = Files.createTempDirectory("remote-check").toFile();
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/plain", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().set("ETag", ETAG);
+                if(ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) send(exchange, 304, null);
+                else send(exchange, 200, body);
+            }
+        });
+        server.createContext("/dated", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().set("Last-Modified", LAST_MODIFIED);
+                if(LAST_MODIFIED.equals(exchange.getRequestHeaders().getFirst("If-Modified-Since"))) send(exchange, 304, null);
+                else send(exchange, 200, body);
+            }
+        });
+        server.createContext("/encoded", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                if(accept != null && accept.contains("gzip")) {
+                    sentGzip = true;
+                    exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                    send(exchange, 200, gzip(body));
+                } else {
+                    send(exchange, 200, body);
+                }
+            }
+        });
+        server.createContext("/file.gz", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                send(exchange, 200, gzip(body));
+            }
+        });
+        server.createContext("/flaky", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                int status = flakyStatus;
+                send(exchange, status, status == 200 ? body : "broken".getBytes("UTF-8"));
+            }
+        });
+        server.start();
+        String base = "http://localhost:" + server.getAddress().getPort();
+
+        try {
+            check("ETag fetch caches the body", Arrays.equals(read(loader(cache).get(base + "/plain")), body));
+            check("ETag refetch is answered 304", Arrays.equals(read(loader(cache).get(base + "/plain")), body) &&
+                  notModified == 1);
+            check("Last-Modified fetch caches the body", Arrays.equals(read(loader(cache).get(base + "/dated")), body));
+            check("Last-Modified refetch is answered 304",
+                  Arrays.equals(read(loader(cache).get(base + "/dated")), body) && notModified == 2);
+
+            long before = Metrics.counter("remote.bytes").getCount();
+            File encoded = loader(cache).get(base + "/encoded");
+            long received = Metrics.counter("remote.bytes").getCount() - before;
+            check("gzip transfer encoding is cached plain", sentGzip && Arrays.equals(read(encoded), body));
+            check("gzip transfer encoding counts the bytes received", received > 0 && received < body.length);
+            check(".gz URL is cached plain", Arrays.equals(read(loader(cache).get(base + "/file.gz")), body));
+
+            File flaky = loader(cache).get(base + "/flaky");
+            flakyStatus = 500;
+            check("500 falls back to the cached copy", Arrays.equals(read(loader(cache).get(base + "/flaky")), body));
+            flakyStatus = 404;
+            check("404 is an error", failsToGet(loader(cache), base + "/flaky"));
+            check("404 removes the cached copy", !flaky.exists() && !new File(flaky.getPath() + ".properties").exists());
+            flakyStatus = 500;
+            check("500 without a cached copy is an error", failsToGet(loader(cache), base + "/flaky"));
+        } finally {
+            server.stop(0);
+        }
+
+        check("server down falls back to the cached copy", Arrays.equals(read(loader(cache).get(base + "/plain")), body));
+        check("server down without a cached copy is an error", failsToGet(loader(cache), base + "/never"));
+
+        for(File file : cache.listFiles()) file.delete();
+        cache.delete();
+        if(failures > 0) {
+            System.out.println(failures + " checks failed");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+    private static RemoteLoader loader(File cache) {
+        return new RemoteLoader(cache, 2);
+    }
+
+    private static boolean failsToGet(RemoteLoader loader, String url) {
+        try {
+            loader.get(url);
+            return false;
+        } catch(IOException e) {
+            return true;
+        }
+    }
+
+    private static void check(String name, boolean passed) {
+        System.out.println((passed ? "ok      " : "FAILED  ") + name);
+        if(!passed) failures++;
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] response) throws IOException {
+        if(status == 304) notModified++;
+        exchange.sendResponseHeaders(status, response == null ? -1 : response.length);
+        OutputStream out = exchange.getResponseBody();
+        if(response != null) out.write(response);
+        out.close();
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(data);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] read(File file) throws IOException {
+        return Files.readAllBytes(file.toPath());
+    }
+}
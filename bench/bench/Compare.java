@@ -0,0 +1,90 @@
+package bench;
+
+import java.io.*;
+import java.util.*;
+
+// Compares two JMH result files written with "-rf csv", as made by
+// "make bench-baseline" and "make bench".  Benchmarks are matched on name and
+// parameters.  A benchmark is marked as a regression when its time grew by
+// more than MIN_REGRESSION and by more than the two scores' error margins together.
+public class Compare {
+    private static final double MIN_REGRESSION = 0.05;
+
+    // Reads a JMH CSV file into a map from benchmark name and parameters to
+    // {score, error}, keeping file order.
+    static LinkedHashMap<String, double[]> read(File file) throws IOException {
+        LinkedHashMap<String, double[]> results = new LinkedHashMap<String, double[]>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            List<String> header = split(reader.readLine());
+            int score = header.indexOf("Score"), error = header.indexOf("Score Error (99.9%)"), unit = header.indexOf("Unit");
+            if(score < 0 || unit < 0) throw new IOException(file + " is not a JMH CSV result file");
+            String line;
+            while((line = reader.readLine()) != null) {
+                List<String> fields = split(line);
+                StringBuilder key = new StringBuilder(fields.get(0));
+                for(int i = unit + 1; i < fields.size(); i++) {
+                    // Parameters a benchmark does not use are left empty.
+                    if(fields.get(i).length() == 0 || fields.get(i).equals("N/A")) continue;
+                    key.append(' ').append(header.get(i).replace("Param: ", "")).append('=').append(fields.get(i));
+                }
+                key.append(" (").append(fields.get(unit)).append(')');
+                double e = error < 0 ? Double.NaN : parse(fields.get(error));
+                results.put(key.toString(), new double[] {parse(fields.get(score)), Double.isNaN(e) ? 0 : e});
+            }
+        } finally {
+            reader.close();
+        }
+        return results;
+    }
+
+    // Splits one CSV line, honoring double quotes.
+    private static List<String> split(String line) {
+        ArrayList<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for(int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if(c == '"') quoted = !quoted;
+            else if(c == ',' && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else field.append(c);
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    private static double parse(String number) {
+        try {
+            return Double.parseDouble(number);
+        } catch(NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    // Main.
+    public static void main(String args[]) throws IOException {
+        if(args.length != 2) {
+            System.out.println("usage: java -cp bench/classes bench.Compare baseline.csv current.csv");
+            System.exit(1);
+        }
+        LinkedHashMap<String, double[]> baseline = read(new File(args[0]));
+        LinkedHashMap<String, double[]> current = read(new File(args[1]));
+        int regressions = 0;
+        for(Map.Entry<String, double[]> entry : current.entrySet()) {
+            double[] now = entry.getValue();
+            double[] before = baseline.get(entry.getKey());
+            if(before == null) {
+                System.out.println(String.format("%-70s %12.3f   (new)", entry.getKey(), now[0]));
+                continue;
+            }
+            double change = 100 * (now[0] - before[0]) / before[0];
+            boolean regression = now[0] - before[0] > Math.max(now[1] + before[1], MIN_REGRESSION * before[0]);
+            if(regression) regressions++;
+            System.out.println(String.format("%-70s %12.3f -> %12.3f  %+7.1f%%%s", entry.getKey(), before[0], now[0],
+                                             change, regression ? "  REGRESSION" : ""));
+        }
+        System.out.println(regressions + " regression" + (regressions == 1 ? "" : "s") + ".");
+    }
+}
@@ -0,0 +1,154 @@
+package bench;
+
+import java.awt.*;
+import java.awt.image.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+// JMH benchmarks for the viewer's hot paths on synthetic graphs written by
+// SyntheticGraph: parsing, getRange, setSelected hit-testing, drawing into an
+// off-screen image at several zoom levels, and decoding a selected image.
+//
+// Run with "make bench"; pass JMH options through BENCH_ARGS, for example
+//
+//     make bench BENCH_ARGS="GraphBenchmark.draw -p nodes=100000"
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Djava.awt.headless=true"})
+public class GraphBenchmark {
+    private static final int PANEL_WIDTH = 900;
+    private static final int PANEL_HEIGHT = 800;
+    private static final int MOUSE_POSITIONS = 1024;
+
+    // A synthetic graph on disk, loaded once per trial.
+    @State(Scope.Benchmark)
+    public static class GraphState {
+        @Param({"10000", "100000"})
+        public int nodes;
+
+        @Param({"8"})
+        public int degree;
+
+        File directory;
+        String graphFile, listFile, imagesDirectory;
+        Workload workload;
+        double[] range;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            directory = java.nio.file.Files.createTempDirectory("graph-bench").toFile();
+            SyntheticGraph.write(directory, nodes, degree, 4, 1);
+            graphFile = new File(directory, SyntheticGraph.GRAPH_FILE).getPath();
+            listFile = new File(directory, SyntheticGraph.LIST_FILE).getPath();
+            imagesDirectory = new File(directory, SyntheticGraph.IMAGES_DIRECTORY).getPath() + File.separator;
+            workload = newWorkload();
+            workload.load(graphFile, listFile, imagesDirectory);
+            range = workload.getRange();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            delete(directory);
+        }
+
+        Workload newWorkload() throws Exception {
+            return (Workload) Class.forName("GraphWorkload").getDeclaredConstructor().newInstance();
+        }
+    }
+
+    // A view of the graph's range magnified zoom times around its center.
+    @State(Scope.Benchmark)
+    public static class ViewState {
+        @Param({"1", "4", "16"})
+        public int zoom;
+
+        double startX, startY, endX, endY;
+        BufferedImage image;
+        Graphics2D graphics;
+        int[] mouseX = new int[MOUSE_POSITIONS];
+        int[] mouseY = new int[MOUSE_POSITIONS];
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp(GraphState state) {
+            double[] range = state.range;
+            double width = (range[2] - range[0]) / zoom, height = (range[3] - range[1]) / zoom;
+            startX = (range[0] + range[2] - width) / 2;
+            startY = (range[1] + range[3] - height) / 2;
+            endX = startX + width;
+            endY = startY + height;
+            image = new BufferedImage(PANEL_WIDTH, PANEL_HEIGHT, BufferedImage.TYPE_INT_RGB);
+            graphics = image.createGraphics();
+            Random random = new Random(1);
+            for(int i = 0; i < MOUSE_POSITIONS; i++) {
+                mouseX[i] = random.nextInt(PANEL_WIDTH);
+                mouseY[i] = random.nextInt(PANEL_HEIGHT);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            graphics.dispose();
+        }
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Object parse(GraphState state) throws Exception {
+        // Parse into a second workload so the shared one is left alone.
+        return state.newWorkload().load(state.graphFile, state.listFile, state.imagesDirectory);
+    }
+
+    @Benchmark
+    public double[] getRange(GraphState state) {
+        return state.workload.getRange();
+    }
+
+    @Benchmark
+    public String setSelected(GraphState state, ViewState view) {
+        int i = view.next++ & (MOUSE_POSITIONS - 1);
+        return state.workload.select(view.mouseX[i], view.mouseY[i], view.startX, view.startY, view.endX, view.endY,
+                                     PANEL_WIDTH, PANEL_HEIGHT);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public BufferedImage draw(GraphState state, ViewState view) {
+        view.graphics.setColor(Color.WHITE);
+        view.graphics.fillRect(0, 0, PANEL_WIDTH, PANEL_HEIGHT);
+        state.workload.draw(view.graphics, view.startX, view.startY, view.endX, view.endY, PANEL_WIDTH, PANEL_HEIGHT);
+        return view.image;
+    }
+
+    // Selects the node under the middle of the full view, then decodes its image.
+    @State(Scope.Benchmark)
+    public static class SelectionState {
+        @Setup(Level.Trial)
+        public void setUp(GraphState state) {
+            double[] r = state.range;
+            for(int x = PANEL_WIDTH / 2; x < PANEL_WIDTH; x += 5) {
+                String name = state.workload.select(x, PANEL_HEIGHT / 2, r[0], r[1], r[2], r[3], PANEL_WIDTH, PANEL_HEIGHT);
+                if(name.length() > 0) return;
+            }
+            throw new IllegalStateException("no node near the middle of the view");
+        }
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public BufferedImage getSelectedImage(GraphState state, SelectionState selection) throws IOException {
+        return state.workload.decodeSelectedImage();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if(children != null) {
+            for(File child : children) delete(child);
+        }
+        file.delete();
+    }
+}
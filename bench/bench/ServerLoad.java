@@ -0,0 +1,135 @@
+package bench;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Load test for a running GraphServer, made by "make bench-server".  Each
+// client thread sends requests back to back over keep-alive connections,
+// cycling through /node, /neighbors, /nearest and /viewport for random nodes
+// and points, and the requests per second and latency percentiles of each
+// endpoint and of all together are printed at the end:
+//
+//     java -cp bench/classes bench.ServerLoad http://localhost:8080 [seconds] [clients]
+//
+// The first second is a warm-up and is not counted.
+public class ServerLoad {
+    private static final String[] ENDPOINTS = {"node", "neighbors", "nearest", "viewport"};
+    private static final long WARMUP_NANOS = 1000000000L;
+    // Side of the /viewport rectangles, as a share of the layout range.
+    private static final double VIEWPORT_SHARE = 0.05;
+
+    public static void main(String args[]) throws Exception {
+        if(args.length < 1 || args.length > 3) {
+            System.out.println("usage: java -cp bench/classes bench.ServerLoad url [seconds] [clients]");
+            System.exit(1);
+        }
+        final String base = args[0].endsWith("/") ? args[0].substring(0, args[0].length() - 1) : args[0];
+        int seconds = args.length >= 2 ? Integer.parseInt(args[1]) : 10;
+        int clients = args.length >= 3 ? Integer.parseInt(args[2]) : 16;
+
+        String info = get(base + "/info");
+        final int nodes = (int) number(info, "\"nodes\":");
+        int r = info.indexOf("\"range\":[") + 9;
+        String[] range = info.substring(r, info.indexOf(']', r)).split(",");
+        final double x1 = Double.parseDouble(range[0]), y1 = Double.parseDouble(range[1]);
+        final double width = Double.parseDouble(range[2]) - x1, height = Double.parseDouble(range[3]) - y1;
+        System.out.println("Loading " + base + " (" + nodes + " nodes) with " + clients + " clients for " + seconds + " s.");
+
+        final long start = System.nanoTime();
+        final long warm = start + WARMUP_NANOS;
+        final long end = warm + seconds * 1000000000L;
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        ArrayList<Future<long[][]>> results = new ArrayList<Future<long[][]>>();
+        for(int c = 0; c < clients; c++) {
+            final long seed = c;
+            results.add(pool.submit(new Callable<long[][]>() {
+                public long[][] call() throws IOException {
+                    Random random = new Random(seed);
+                    long[][] latencies = new long[ENDPOINTS.length][1024];
+                    int[] counts = new int[ENDPOINTS.length];
+                    for(int n = 0; ; n++) {
+                        int e = n % ENDPOINTS.length;
+                        String url = base + "/" + ENDPOINTS[e];
+                        double x = x1 + random.nextDouble() * width, y = y1 + random.nextDouble() * height;
+                        if(e == 0) url += "?id=" + random.nextInt(nodes);
+                        else if(e == 1) url += "?node=" + random.nextInt(nodes) + "&limit=20";
+                        else if(e == 2) url += "?x=" + x + "&y=" + y;
+                        else url += "?x1=" + x + "&y1=" + y + "&x2=" + (x + VIEWPORT_SHARE * width) +
+                                    "&y2=" + (y + VIEWPORT_SHARE * height) + "&limit=1000";
+                        long sent = System.nanoTime();
+                        if(sent >= end) break;
+                        get(url);
+                        long done = System.nanoTime();
+                        if(sent < warm) continue;
+                        if(counts[e] == latencies[e].length) latencies[e] = Arrays.copyOf(latencies[e], 2 * counts[e]);
+                        latencies[e][counts[e]++] = done - sent;
+                    }
+                    for(int e = 0; e < ENDPOINTS.length; e++) latencies[e] = Arrays.copyOf(latencies[e], counts[e]);
+                    return latencies;
+                }
+            }));
+        }
+
+        long[][] all = new long[ENDPOINTS.length + 1][0];
+        for(Future<long[][]> result : results) {
+            long[][] latencies = result.get();
+            for(int e = 0; e < ENDPOINTS.length; e++) {
+                all[e] = concat(all[e], latencies[e]);
+                all[ENDPOINTS.length] = concat(all[ENDPOINTS.length], latencies[e]);
+            }
+        }
+        pool.shutdown();
+
+        System.out.println(String.format("%-10s %10s %10s %10s %10s %10s %10s", "endpoint", "requests", "req/s",
+                                         "p50 ms", "p99 ms", "p99.9 ms", "max ms"));
+        for(int e = 0; e <= ENDPOINTS.length; e++) {
+            long[] latencies = all[e];
+            Arrays.sort(latencies);
+            System.out.println(String.format("%-10s %10d %10.0f %10.3f %10.3f %10.3f %10.3f",
+                                             e < ENDPOINTS.length ? ENDPOINTS[e] : "all", latencies.length,
+                                             latencies.length / (double) seconds, percentile(latencies, 0.5),
+                                             percentile(latencies, 0.99), percentile(latencies, 0.999),
+                                             percentile(latencies, 1.0)));
+        }
+    }
+
+    // Fetches a URL, reading the response to the end so the connection is reused.
+    static String get(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[1 << 13];
+            int n;
+            while((n = in.read(buffer)) > 0) body.write(buffer, 0, n);
+        } finally {
+            in.close();
+        }
+        if(status != 200) throw new IOException("HTTP " + status + " for " + url + ": " + body.toString("UTF-8"));
+        return body.toString("UTF-8");
+    }
+
+    // Reads the number after a key in a JSON object.
+    static double number(String json, String key) {
+        int k = json.indexOf(key) + key.length();
+        int e = k;
+        while(e < json.length() && "-+.0123456789eE".indexOf(json.charAt(e)) >= 0) e++;
+        return Double.parseDouble(json.substring(k, e));
+    }
+
+    static long[] concat(long[] a, long[] b) {
+        long[] c = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, c, a.length, b.length);
+        return c;
+    }
+
+    // Returns a percentile of sorted nanosecond latencies, in milliseconds.
+    static double percentile(long[] sorted, double p) {
+        if(sorted.length == 0) return 0;
+        int k = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, k))] / 1e6;
+    }
+}
@@ -0,0 +1,124 @@
+package bench;
+
+import java.awt.image.*;
+import java.io.*;
+import java.util.*;
+import javax.imageio.*;
+
+// Writes a synthetic image match graph in the same form as the real data: a
+// .dot file with a pos for every node and a weight for every edge, a list
+// file and a directory of JPEG images.
+//
+// Nodes sit on a jittered grid in a 10000 by 10000 layout.  Most edges join
+// nodes a few grid cells apart, as photos of the same spot do; a few join
+// random nodes anywhere in the layout.  Node i uses image i % images, so a
+// large graph needs only a handful of image files.
+public class SyntheticGraph {
+    public static final String GRAPH_FILE = "graph.dot";
+    public static final String LIST_FILE = "list.txt";
+    public static final String IMAGES_DIRECTORY = "images";
+
+    private static final int LAYOUT_SIZE = 10000;
+    private static final int NEIGHBORHOOD = 3;
+    private static final double LONG_EDGE_FRACTION = 0.05;
+    private static final int IMAGE_WIDTH = 1600;
+    private static final int IMAGE_HEIGHT = 1200;
+
+    // Writes graph.dot, list.txt and images/ into the given directory.  Each
+    // node starts degree / 2 edges, so the average degree is about degree.
+    public static void write(File directory, int nodes, int degree, int images, long seed) throws IOException {
+        Random random = new Random(seed);
+        File imagesDirectory = new File(directory, IMAGES_DIRECTORY);
+        imagesDirectory.mkdirs();
+
+        PrintWriter list = new PrintWriter(new BufferedWriter(new FileWriter(new File(directory, LIST_FILE))));
+        for(int i = 0; i < nodes; i++) list.println(imageName(i % images));
+        list.close();
+
+        int side = (int) Math.ceil(Math.sqrt(nodes));
+        double spacing = (double) LAYOUT_SIZE / side;
+        double[] x = new double[nodes];
+        double[] y = new double[nodes];
+        for(int i = 0; i < nodes; i++) {
+            x[i] = (i % side + random.nextDouble()) * spacing;
+            y[i] = (i / side + random.nextDouble()) * spacing;
+        }
+
+        PrintWriter dot = new PrintWriter(new BufferedWriter(new FileWriter(new File(directory, GRAPH_FILE)), 1 << 16));
+        dot.println("graph G {");
+        dot.println("\tgraph [bb=\"0,0," + LAYOUT_SIZE + "," + LAYOUT_SIZE + "\"];");
+        dot.println("\tnode [label=\"\\N\"];");
+        for(int i = 0; i < nodes; i++) {
+            dot.println("\timage" + i + " [label=\"" + i + "\", pos=\"" + format(x[i]) + "," + format(y[i]) +
+                        "\", width=\"0.75\", height=\"0.5\"];");
+        }
+        int edgesPerNode = Math.max(1, degree / 2);
+        for(int i = 0; i < nodes && nodes > 1; i++) {
+            for(int e = 0; e < edgesPerNode; e++) {
+                int j;
+                if(random.nextDouble() < LONG_EDGE_FRACTION) {
+                    j = random.nextInt(nodes);
+                } else {
+                    int column = i % side + random.nextInt(2 * NEIGHBORHOOD + 1) - NEIGHBORHOOD;
+                    int row = i / side + random.nextInt(2 * NEIGHBORHOOD + 1) - NEIGHBORHOOD;
+                    j = Math.min(Math.max(row, 0), side - 1) * side + Math.min(Math.max(column, 0), side - 1);
+                }
+                if(j == i || j >= nodes) j = (i + 1) % nodes;
+                dot.println("\timage" + i + " -- image" + j + " [weight=\"" + (20 + random.nextInt(480)) +
+                            "\", pos=\"" + format(x[i]) + "," + format(y[i]) + " " + format(x[j]) + "," + format(y[j]) + "\"];");
+            }
+        }
+        dot.println("}");
+        dot.close();
+        if(dot.checkError()) throw new IOException("error writing " + new File(directory, GRAPH_FILE));
+
+        for(int i = 0; i < images; i++) {
+            ImageIO.write(image(random), "jpg", new File(imagesDirectory, imageName(i)));
+        }
+    }
+
+    public static String imageName(int image) {
+        return String.format("img%05d.jpg", image);
+    }
+
+    private static String format(double d) {
+        return String.format(Locale.ROOT, "%.1f", d);
+    }
+
+    // Returns a photo-sized image with smooth gradients and some noise, so
+    // that it compresses and decodes roughly like a real photo.
+    private static BufferedImage image(Random random) {
+        BufferedImage image = new BufferedImage(IMAGE_WIDTH, IMAGE_HEIGHT, BufferedImage.TYPE_INT_RGB);
+        int phase = random.nextInt(256);
+        for(int y = 0; y < IMAGE_HEIGHT; y++) {
+            for(int x = 0; x < IMAGE_WIDTH; x++) {
+                int noise = random.nextInt(32);
+                int r = (x * 255 / IMAGE_WIDTH + noise) & 0xff;
+                int g = (y * 255 / IMAGE_HEIGHT + phase + noise) & 0xff;
+                int b = ((x + y) / 8 + noise) & 0xff;
+                image.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+        return image;
+    }
+
+    // Main.
+    public static void main(String args[]) throws IOException {
+        if(args.length < 2 || args.length > 5) {
+            System.out.println("usage: java -cp bench/classes bench.SyntheticGraph out_dir nodes [degree] [images] [seed]");
+            System.out.println("out_dir - directory to write " + GRAPH_FILE + ", " + LIST_FILE + " and " + IMAGES_DIRECTORY + "/ to.");
+            System.out.println("nodes   - number of nodes.");
+            System.out.println("degree  - average number of neighbors per node, 8 by default.");
+            System.out.println("images  - number of distinct JPEG images, 8 by default.");
+            System.out.println("seed    - random seed, 1 by default.");
+            System.exit(1);
+        }
+        File directory = new File(args[0]);
+        int nodes = Integer.parseInt(args[1]);
+        int degree = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        int images = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+        long seed = args.length > 4 ? Long.parseLong(args[4]) : 1;
+        write(directory, nodes, degree, images, seed);
+        System.out.println("Wrote " + nodes + " nodes to " + directory + ".");
+    }
+}
@@ -0,0 +1,27 @@
+package bench;
+
+import java.awt.*;
+import java.awt.image.*;
+import java.io.*;
+
+// The operations the benchmarks time.  JMH only accepts benchmarks in a named
+// package, and code in a named package cannot refer to the viewer's classes in
+// the default package, so the benchmarks go through this interface.  It is
+// implemented by GraphWorkload, which is loaded by name.
+public interface Workload {
+    // Parses the graph and list files into a new graph, which becomes the
+    // graph the other methods work on.  The images directory ends in a separator.
+    Object load(String graphFile, String listFile, String imagesDirectory);
+
+    // Calls Graph.getRange().
+    double[] getRange();
+
+    // Calls Graph.setSelected() and returns the selected image name, or "".
+    String select(int mouseX, int mouseY, double startX, double startY, double endX, double endY, int panelWidth, int panelHeight);
+
+    // Calls Graph.draw().
+    void draw(Graphics g, double startX, double startY, double endX, double endY, int panelWidth, int panelHeight);
+
+    // Reads and decodes the selected node's image, bypassing the image cache.
+    BufferedImage decodeSelectedImage() throws IOException;
+}